@@ -486,7 +486,7 @@ public class AdsbGpsRThread extends Thread implements Reporter {
             double longitude,
             double paltitude)
     {
-        double altsetting = MetarRepo.getAltSetting (wairToNow.metarRepos, latitude, longitude);
+        double altsetting = MetarRepo.getAltSetting (latitude, longitude);
         if (altsetting <= 0.0) return Double.NaN;
         // really indicated altitude but close enuf for traffic reports
         return paltitude + 1000.0 * (altsetting - 29.92);
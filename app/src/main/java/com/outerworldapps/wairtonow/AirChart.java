@@ -50,8 +50,10 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -61,9 +63,20 @@ import java.util.zip.ZipFile;
 public abstract class AirChart implements DisplayableChart, IExactMapper {
     private final static String TAG = "WairToNow";
     private final static boolean showtilenames = false;
+    private final static int MAXPREBUILDSCALING = 8;
+    private final static int BENCHTILESACROSS = 4;  // BenchmarkTileFormats() uses 4x4 tiles from chart center
+    private final static boolean rawtiles = true;  // write generated tiles as raw pixels instead of .png
 
+    // tiles waiting to be loaded by AirTileLoader threads, all locked by airTileLoaderLock
     private final static Object airTileLoaderLock = new Object ();
-    private static AirTileLoader airTileLoaderThread;
+    private final static ArrayList<AirTile> tilesToLoad = new ArrayList<> ();
+    private final static int maxAirTileLoaders = Math.max (1, Math.min (Runtime.getRuntime ().availableProcessors () - 1, 3));
+    private static int numAirTileLoaders;
+    private static int maxTilesQueued;
+    private static long tilesLoaded;
+    private static long tilesCancelled;
+    private static long tileLoadTotalMs;
+    private static long tileLoadMaxMs;
 
     private static NNThreadLocal<float[]> flt4PerThread = new NNThreadLocal<float[]> () {
         @Override protected float[] initialValue () { return new float[4]; }
@@ -90,9 +103,9 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
     private int scaling;        // 1=full scale, 2=half sized, 3=third sized, etc
     private int wstep;          // widthwise pixel step for each tile
     private int thisrevno;      // this chart's revision number
-    private int[] expiredpixels;
     private LinkedList<AirTile> loadedBitmaps = new LinkedList<> ();
     private long viewDrawCycle = 0;  // incremented each drawing cycle
+    private TrackAhead trackAhead = new TrackAhead ();
     private MaintView maintView;
     private Matrix drawOnCanvasChartMat   = new Matrix ();
     private Matrix drawOnCanvasTileMat    = new Matrix ();
@@ -371,11 +384,12 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
              */
             if (MapTileToCanvas (tile)) {
                 try {
-                    Bitmap bm = tile.GetScaledBitmap ();
+                    Bitmap bm = tile.GetScaledBitmap (TileCenterDistSq ());
                     if (bm != null) {
                         canvas.drawBitmap (bm, drawOnCanvasTileMat, null);
                         if (tile.tileDrawCycle == 0) loadedBitmaps.add (tile);
                         tile.tileDrawCycle = viewDrawCycle;
+                        BitmapPool.used (tile, bm);
 
                         // maybe show tile names at top center of each tile
                         if (showtilenames) {
@@ -397,6 +411,14 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
             }
         }
 
+        /*
+         * If in flight with screen following the aircraft, start loading tiles
+         * that will be scrolling onto the screen soon.
+         */
+        if (trackAhead.compute (wairToNow, pmap) && BitmapPool.roomToPrefetch ()) {
+            PrefetchTrackAhead ();
+        }
+
         /*
          * Unload any unreferenced tiles.
          */
@@ -408,6 +430,86 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
                 tile.recycle ();
             }
         }
+
+        /*
+         * Don't bother loading tiles that weren't asked for this cycle,
+         * eg, they scrolled off screen or are for a different zoom level.
+         */
+        CancelUnneededTiles (viewDrawCycle);
+
+        /*
+         * If too many bitmaps loaded for all charts, unload some that haven't been drawn lately.
+         */
+        BitmapPool.trim ();
+    }
+
+    /**
+     * Request tiles the canvas will cover in the next TrackAhead.SECONDS.
+     * They are queued after all the on-screen tiles, nearest in time first.
+     * Any that were queued for a previous track get cancelled at the end of
+     * the draw cycle by CancelUnneededTiles() as they won't be requested again.
+     * Loaded ones are held, and count against the BitmapPool budget, as long
+     * as they keep getting requested.
+     */
+    private void PrefetchTrackAhead ()
+    {
+        double diagsq = (double) canvasBounds.width () * canvasBounds.width () +
+                (double) canvasBounds.height () * canvasBounds.height ();
+        try {
+            for (int step = 1; step <= TrackAhead.STEPS; step ++) {
+                canvasBounds.offsetTo ((int) Math.round (trackAhead.stepX (step)),
+                        (int) Math.round (trackAhead.stepY (step)));
+                for (int i = 0; i < ntilez; i ++) {
+                    AirTile tile = tilez[i];
+
+                    // skip if already drawn or requested this cycle
+                    if ((tile.tileDrawCycle == viewDrawCycle) || (tile.requestCycle == viewDrawCycle)) continue;
+                    if (!MapTileToCanvas (tile)) continue;
+
+                    Bitmap bm = tile.GetScaledBitmap (diagsq * 4 * step + TileCenterDistSq ());
+                    if (bm != null) {
+                        if (tile.tileDrawCycle == 0) loadedBitmaps.add (tile);
+                        tile.tileDrawCycle = viewDrawCycle;
+                        BitmapPool.used (tile, bm);
+                    }
+                }
+            }
+        } finally {
+            canvasBounds.offsetTo (0, 0);
+        }
+    }
+
+    /**
+     * Get distance (squared) from center of canvas to center of tile just mapped by MapTileToCanvas().
+     * Used to load tiles near the center of the screen first.
+     */
+    private double TileCenterDistSq ()
+    {
+        float[] points = drawOnCanvasPoints;
+        double dx = (points[8] + points[14]) / 2.0 - canvasBounds.centerX ();
+        double dy = (points[9] + points[15]) / 2.0 - canvasBounds.centerY ();
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Remove this chart's tiles from the load queue that weren't requested in the given draw cycle.
+     */
+    private void CancelUnneededTiles (long cycle)
+    {
+        synchronized (airTileLoaderLock) {
+            int n = tilesToLoad.size ();
+            int j = 0;
+            for (int i = 0; i < n; i ++) {
+                AirTile tile = tilesToLoad.get (i);
+                if ((tile.owner () == this) && (tile.requestCycle < cycle)) {
+                    tile.queued = false;
+                    tilesCancelled ++;
+                } else {
+                    tilesToLoad.set (j ++, tile);
+                }
+            }
+            while (n > j) tilesToLoad.remove (-- n);
+        }
     }
 
     /**
@@ -416,6 +518,7 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
     @Override  // DisplayableChart
     public void CloseBitmaps ()
     {
+        CancelUnneededTiles (Long.MAX_VALUE);
         if (tilez != null) {
             for (AirTile tile : tilez) {
                 if (tile != null) tile.recycle ();
@@ -423,9 +526,11 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
             tilez = null;
         }
         loadedBitmaps.clear ();
-        if (tileZipFile != null) {
-            try { tileZipFile.close (); } catch (IOException ioe) { Lib.Ignored (); }
-            tileZipFile = null;
+        synchronized (this) {
+            if (tileZipFile != null) {
+                try { tileZipFile.close (); } catch (IOException ioe) { Lib.Ignored (); }
+                tileZipFile = null;
+            }
         }
     }
 
@@ -637,7 +742,7 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
                     AirTile tile = new AirTile (null, leftTilePix, topTilePix, 1, legends);
                     Bitmap tbm = tile.LoadScaledBitmap ();
                     if (tbm != null) can.drawBitmap (tbm, null, dst, null);
-                    tile.recycle ();
+                    BitmapPool.free (tbm);
                 }
             }
         }
@@ -829,22 +934,45 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
         File pngParent = pngFile.getParentFile ();
         assert pngParent != null;
         Lib.Ignored (pngParent.mkdirs ());
-        FileOutputStream os = new FileOutputStream (pngName + ".tmp");
+        // tmp name per thread cuz prebuild and tile loader might make the same tile at once
+        String tmpName = pngName + "." + Thread.currentThread ().getId () + ".tmp";
+        FileOutputStream os = new FileOutputStream (tmpName);
         bm.compress (Bitmap.CompressFormat.PNG, 0, os);
         os.close ();
-        Lib.RenameFile (pngName + ".tmp", pngName);
+        Lib.RenameFile (tmpName, pngName);
+    }
+
+    /**
+     * Write an internally generated tile to a raw pixel file.
+     * Bigger than a .png but can be copied straight into a bitmap when read back.
+     * @param rawFile = where to write the file
+     * @param pixels = tile's pixels
+     * @throws IOException = error writing file
+     */
+    private static void WriteRawFile (File rawFile, int[] pixels, int width, int height)
+            throws IOException
+    {
+        String rawName = rawFile.getPath ();
+        File rawParent = rawFile.getParentFile ();
+        assert rawParent != null;
+        Lib.Ignored (rawParent.mkdirs ());
+        String tmpName = rawName + "." + Thread.currentThread ().getId () + ".tmp";
+        BitmapPool.writeRawFile (tmpName, pixels, width, height);
+        Lib.RenameFile (tmpName, rawName);
     }
 
     /**
      * Make sure the tile zip file is open.
      * It contains all the original unscaled untrimmed tiles from server.
      */
-    private void openTileZipFile ()
+    // synchronized cuz several AirTileLoader threads may be reading tiles at once
+    private synchronized ZipFile openTileZipFile ()
             throws IOException
     {
         if (tileZipFile == null) {
             tileZipFile = new ZipFile (tileZipName);
         }
+        return tileZipFile;
     }
 
     /**
@@ -853,11 +981,14 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
      * Clipped tiles (what have legened area alpha'd out) are indicated by an @.png suffix
      * instead of plain .png, eg, New_York_SEC_92/43/38@.png
      * Scaled tiles are indicated by an /S<scale>/ in their name, eg New_York_SEC_92/S4/3/14.png
+     * With rawtiles, these generated tiles are .raw instead of .png, eg New_York_SEC_92/43/38@.raw
      */
-    private class AirTile {
+    private class AirTile extends BitmapPool.Entry {
         public boolean isChartedOnly;  // tile contains only pixels that are in charted area
         public boolean isLegendOnly;   // tile contains only pixels that are in legend area
-        public boolean queued;         // queued to AirTileLoader thread
+        public boolean queued;         // queued to or being loaded by AirTileLoader thread
+        public double priority;        // distance squared from canvas center, lowest loads first
+        public long requestCycle;      // viewDrawCycle tile was last requested in
         public int leftPixel;          // where the left edge is within the chart
         public int topPixel;           // where the top edge is within the chart
         public int width;              // width of this tile (always wstep except for rightmost tiles)
@@ -894,9 +1025,10 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
 
         /**
          * Load the corresponding scaled and/or clipped bitmap.
+         * @param prio = distance squared from canvas center, lower gets loaded sooner
          * @return bitmap of the tile (or null if not available right now)
          */
-        public Bitmap GetScaledBitmap ()
+        public Bitmap GetScaledBitmap (double prio)
         {
             if (!legends && isLegendOnly) return null;
 
@@ -905,26 +1037,35 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
             Bitmap bm;
             synchronized (airTileLoaderLock) {
                 bm = bitmap;
-                if ((bm == null) && !queued) {
+                if (bm == null) {
 
-                    // push this as first cuz there might be a lot of tiles already
-                    // queued that we don't really need any more so queue this one
-                    // to be next to be processed cuz this one is needed asap
-                    AirTileLoader.tilesToLoad.addFirst (this);
+                    // update priority even if already queued
+                    // cuz the tile may have moved on the screen
+                    priority = prio;
+                    requestCycle = viewDrawCycle;
 
                     // don't queue the same tile more than once
-                    queued = true;
-
-                    // wake the AirTileLoader thread
-                    if (airTileLoaderThread == null) {
-                        airTileLoaderThread = new AirTileLoader ();
-                        airTileLoaderThread.start ();
+                    if (!queued) {
+                        tilesToLoad.add (this);
+                        queued = true;
+                        if (maxTilesQueued < tilesToLoad.size ()) maxTilesQueued = tilesToLoad.size ();
+
+                        // start another AirTileLoader thread if there is enough work for it
+                        if ((numAirTileLoaders < maxAirTileLoaders) && (numAirTileLoaders < tilesToLoad.size ())) {
+                            numAirTileLoaders ++;
+                            new AirTileLoader ().start ();
+                        }
                     }
                 }
             }
             return bm;
         }
 
+        public AirChart owner ()
+        {
+            return AirChart.this;
+        }
+
         /**
          * Called in AirTileThread to read bitmap into memorie.
          */
@@ -962,9 +1103,13 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
                 }
 
                 // read tile from zip and make bitmap
-                openTileZipFile ();
-                InputStream is = tileZipFile.getInputStream (tileZipFile.getEntry (pngName));
-                bm = BitmapFactory.decodeStream (is, null, bfo);
+                ZipFile zf = openTileZipFile ();
+                if (bfo == null) {
+                    bm = BitmapPool.decodeZipEntry (zf, pngName);
+                } else {
+                    InputStream is = zf.getInputStream (zf.getEntry (pngName));
+                    bm = BitmapFactory.decodeStream (is, null, bfo);
+                }
                 if (bm == null) throw new IOException ("error reading bitmap " + tileZipName + " " + pngName);
             } else {
 
@@ -972,17 +1117,9 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
                 getPngName ();
 
                 // see if we already have exact tile needed
+                // if not, create it and write to flash for next time
                 if (!pngFile.exists ()) {
-
-                    // if not, create it
-                    Log.d (TAG, "creating " + pngName);
-                    int[] pixels = new int[width * height];
-                    if (scaling == 1) MakePartialBitmap (pixels);
-                    else MakeScaledBitmap (pixels);
-
-                    // write to flash for next time
-                    bm = Bitmap.createBitmap (pixels, width, height, Bitmap.Config.ARGB_8888);
-                    WritePngFile (pngFile, bm);
+                    bm = CreatePngFile ();
 
                     // caller wants undersampling, throw this one away
                     if (bfo != null) {
@@ -992,7 +1129,27 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
                 }
 
                 // read tile, possibly undersampling
-                if (bm == null) bm = BitmapFactory.decodeFile (pngName, bfo);
+                if (bm == null) {
+                    if (rawtiles) {
+                        bm = BitmapPool.decodeRawFile (pngName);
+                        if (bm == null) {
+                            // corrupt, make a new one next time
+                            Lib.Ignored (pngFile.delete ());
+                        } else if (bfo != null) {
+                            // undersample same as BitmapFactory would
+                            float scale = (float) bfo.inTargetDensity / bfo.inDensity;
+                            int sw = (int) (bm.getWidth ()  * scale + 0.5F);
+                            int sh = (int) (bm.getHeight () * scale + 0.5F);
+                            Bitmap sbm = Bitmap.createScaledBitmap (bm, sw, sh, true);
+                            if (sbm != bm) BitmapPool.free (bm);
+                            bm = sbm;
+                        }
+                    } else if (bfo == null) {
+                        bm = BitmapPool.decodeFile (pngName);
+                    } else {
+                        bm = BitmapFactory.decodeFile (pngName, bfo);
+                    }
+                }
                 if (bm == null) throw new IOException ("error reading bitmap " + pngName);
             }
 
@@ -1001,9 +1158,7 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
                 int bmw = bm.getWidth ();
                 int bmh = bm.getHeight ();
                 if (!bm.isMutable ()) {
-                    if ((expiredpixels == null) || (expiredpixels.length < bmw * bmh)) {
-                        expiredpixels = new int[bmw*bmh];
-                    }
+                    int[] expiredpixels = new int[bmw*bmh];
                     bm.getPixels (expiredpixels, 0, bmw, 0, 0, bmw, bmh);
                     bm.recycle ();
                     bm = Bitmap.createBitmap (bmw, bmh, Bitmap.Config.ARGB_8888);
@@ -1020,7 +1175,24 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
         }
 
         /**
-         * Get pathname for a .png file that we create on-the-fly.
+         * Create scaled and/or clipped tile file from unscaled tiles.
+         * @return bitmap that was written to the file
+         */
+        private Bitmap CreatePngFile () throws IOException
+        {
+            getPngName ();
+            Log.d (TAG, "creating " + pngName);
+            int[] pixels = new int[width * height];
+            if (scaling == 1) MakePartialBitmap (pixels);
+            else MakeScaledBitmap (pixels);
+            if (rawtiles) WriteRawFile (pngFile, pixels, width, height);
+            Bitmap bm = Bitmap.createBitmap (pixels, width, height, Bitmap.Config.ARGB_8888);
+            if (!rawtiles) WritePngFile (pngFile, bm);
+            return bm;
+        }
+
+        /**
+         * Get pathname for a .png (or .raw) file that we create on-the-fly.
          * These tiles are either scaled or have legend areas trimmed to transparent.
          */
         public void getPngName ()
@@ -1037,6 +1209,7 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
                 }
                 sb.append ('/');
                 basePngName (sb);
+                if (rawtiles) sb.replace (sb.length () - 4, sb.length (), ".raw");
                 pngName = sb.toString ();
                 pngFile = new File (pngName);
             }
@@ -1070,7 +1243,7 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
             AirTile unclippedAirTile = new AirTile (inval, leftPixel, topPixel, 1, true);
             Bitmap bm = unclippedAirTile.ReadScaledBitmap (null);
             bm.getPixels (pixels, 0, width, 0, 0, width, height);
-            bm.recycle ();
+            BitmapPool.free (bm);
             for (int y = 0; y < height; y ++) {
                 for (int x = 0; x < width; x ++) {
                     if (!PixelIsCharted (leftPixel + x, topPixel + y)) {
@@ -1188,10 +1361,26 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
          */
         public void recycle ()
         {
-            if (bitmap != null) {
-                bitmap.recycle ();
+            Bitmap bm;
+            synchronized (airTileLoaderLock) {
+                bm = bitmap;
                 bitmap = null;
             }
+            BitmapPool.forget (this);
+            BitmapPool.free (bm);
+        }
+
+        /**
+         * Too many bitmaps loaded for all charts and this one hasn't been drawn lately.
+         */
+        @Override  // BitmapPool.Entry
+        protected void evict ()
+        {
+            if (tileDrawCycle != 0) {
+                loadedBitmaps.remove (this);
+                tileDrawCycle = 0;
+            }
+            recycle ();
         }
 
         /**
@@ -1204,38 +1393,43 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
     }
 
     /**
-     * Load air tiles in a background thread to keep GUI responsive.
+     * Load air tiles in background threads to keep GUI responsive.
+     * Up to maxAirTileLoaders of these run at once, each exits when the queue is empty.
      */
     private static class AirTileLoader extends Thread {
-        public final static LinkedList<AirTile> tilesToLoad = new LinkedList<> ();
-
         @Override
         public void run ()
         {
             setName ("AirTile loader");
 
-            /*
-             * Once started, we keep going forever.
-             */
             while (true) {
 
                 /*
-                 * Get a tile to load.  If none, we are all done.
+                 * Get the queued tile closest to the center of the screen.
+                 * If none, we are all done.
                  */
                 AirTile tile;
                 synchronized (airTileLoaderLock) {
-                    if (tilesToLoad.isEmpty ()) {
-                        SQLiteDBs.CloseAll ();
-                        airTileLoaderThread = null;
+                    int n = tilesToLoad.size ();
+                    if (n == 0) {
+                        numAirTileLoaders --;
                         break;
                     }
-                    tile = tilesToLoad.removeFirst ();
+                    int best = 0;
+                    for (int i = 1; i < n; i ++) {
+                        if (tilesToLoad.get (best).priority > tilesToLoad.get (i).priority) best = i;
+                    }
+                    tile = tilesToLoad.get (best);
+                    tilesToLoad.set (best, tilesToLoad.get (-- n));
+                    tilesToLoad.remove (n);
                 }
 
                 /*
                  * Got something to do, try to load the tile in memory.
                  */
+                long started = System.currentTimeMillis ();
                 Bitmap bm = tile.LoadScaledBitmap ();
+                long ms = System.currentTimeMillis () - started;
 
                 /*
                  * Mark that we are done trying to load the bitmap
@@ -1244,9 +1438,191 @@ public abstract class AirChart implements DisplayableChart, IExactMapper {
                 synchronized (airTileLoaderLock) {
                     tile.bitmap = bm;
                     tile.queued = false;
+                    tileLoadTotalMs += ms;
+                    if (tileLoadMaxMs < ms) tileLoadMaxMs = ms;
+                    if (++ tilesLoaded % 100 == 0) {
+                        Log.d (TAG, "AirTileLoader: loaded=" + tilesLoaded + " avgms=" + (tileLoadTotalMs / tilesLoaded) +
+                                " maxms=" + tileLoadMaxMs + " cancelled=" + tilesCancelled +
+                                " queued=" + tilesToLoad.size () + " maxqueued=" + maxTilesQueued +
+                                " threads=" + numAirTileLoaders);
+                    }
                 }
                 tile.postInvalidate ();
             }
+
+            SQLiteDBs.CloseAll ();
+        }
+    }
+
+    /**
+     * Callback for PrebuildScaledTiles() progress.
+     */
+    public interface PrebuildProgress {
+        void prebuildProgress (int done, int total);
+    }
+
+    /**
+     * Create the zoomed-out tile files for this chart ahead of time (scaling 2..MAXPREBUILDSCALING,
+     * with and without legends) so they don't have to be made the first time the chart is zoomed out.
+     * Likewise for the legend-trimmed unscaled tiles.
+     * Uses one thread per core.  Called in a background thread, returns when all done.
+     */
+    public void PrebuildScaledTiles (PrebuildProgress progress)
+    {
+        if (!MakeSureWeHaveTileSize ()) return;
+
+        // make list of all scaled tiles that aren't on flash yet
+        // also the unscaled ones with legend pixels trimmed off
+        ArrayList<AirTile> tiles = new ArrayList<> ();
+        for (int s = 1; s <= MAXPREBUILDSCALING; s ++) {
+            int width  = (chartwidth + s - 1) / s;
+            int height = (chartheight + s - 1) / s;
+            for (int h = 0; h < height; h += hstep) {
+                for (int w = 0; w < width; w += wstep) {
+                    AirTile at = new AirTile (null, w, h, s, true);
+                    if (s > 1) {
+                        at.getPngName ();
+                        if (!at.pngFile.exists ()) tiles.add (at);
+                    }
+
+                    // legend-less tile is a separate file only if it has both kinds of pixels
+                    if (!at.isChartedOnly && !at.isLegendOnly) {
+                        at = new AirTile (null, w, h, s, false);
+                        at.getPngName ();
+                        if (!at.pngFile.exists ()) tiles.add (at);
+                    }
+                }
+            }
+        }
+        int total = tiles.size ();
+        if (total == 0) return;
+
+        // start threads to make them
+        long started = System.currentTimeMillis ();
+        int nthreads = Math.min (Runtime.getRuntime ().availableProcessors (), total);
+        PrebuildThread[] threads = new PrebuildThread[nthreads];
+        AtomicInteger next = new AtomicInteger ();
+        AtomicInteger done = new AtomicInteger ();
+        for (int i = 0; i < nthreads; i ++) {
+            threads[i] = new PrebuildThread (tiles, next, done);
+            threads[i].start ();
+        }
+
+        // report progress until they finish
+        for (PrebuildThread t : threads) {
+            while (t.isAlive ()) {
+                try { t.join (1000); } catch (InterruptedException ie) { Lib.Ignored (); }
+                progress.prebuildProgress (done.get (), total);
+            }
+        }
+        Log.i (TAG, "prebuilt " + total + " scaled tiles for " + spacenamewr + " in " +
+                (System.currentTimeMillis () - started) + " ms using " + nthreads + " threads");
+    }
+
+    /**
+     * Time reading generated tiles back from flash in .png vs .raw format.
+     * Uses the same fixed block of zoomed-out tiles from the middle of the chart
+     * for both formats, written to temp files that are deleted afterward.
+     * Debugging only, called in a background thread, logs the results.
+     */
+    public void BenchmarkTileFormats ()
+    {
+        if (!MakeSureWeHaveTileSize ()) return;
+
+        int width  = (chartwidth  + 1) / 2;
+        int height = (chartheight + 1) / 2;
+        int left = Math.max (0, (width  / wstep - BENCHTILESACROSS / 2) * wstep);
+        int top  = Math.max (0, (height / hstep - BENCHTILESACROSS / 2) * hstep);
+
+        String benchName = WairToNow.dbdir + "/charts/" + spacenamewr.replace (' ', '_') + ".bench";
+        File pngBench = new File (benchName + ".png.tmp");
+        File rawBench = new File (benchName + ".raw.tmp");
+        int ntiles = 0;
+        long pngns = 0;
+        long rawns = 0;
+        long pngbytes = 0;
+        long rawbytes = 0;
+        try {
+            for (int h = top; (h < height) && (h < top + BENCHTILESACROSS * hstep); h += hstep) {
+                for (int w = left; (w < width) && (w < left + BENCHTILESACROSS * wstep); w += wstep) {
+                    AirTile at = new AirTile (null, w, h, 2, true);
+                    int[] pixels = new int[at.width*at.height];
+                    at.MakeScaledBitmap (pixels);
+
+                    Bitmap bm = Bitmap.createBitmap (pixels, at.width, at.height, Bitmap.Config.ARGB_8888);
+                    try {
+                        FileOutputStream os = new FileOutputStream (pngBench);
+                        try {
+                            bm.compress (Bitmap.CompressFormat.PNG, 0, os);
+                        } finally {
+                            os.close ();
+                        }
+                    } finally {
+                        bm.recycle ();
+                    }
+                    BitmapPool.writeRawFile (rawBench.getPath (), pixels, at.width, at.height);
+                    pngbytes += pngBench.length ();
+                    rawbytes += rawBench.length ();
+
+                    long started = System.nanoTime ();
+                    bm = BitmapPool.decodeFile (pngBench.getPath ());
+                    pngns += System.nanoTime () - started;
+                    BitmapPool.free (bm);
+
+                    started = System.nanoTime ();
+                    bm = BitmapPool.decodeRawFile (rawBench.getPath ());
+                    rawns += System.nanoTime () - started;
+                    BitmapPool.free (bm);
+
+                    ntiles ++;
+                }
+            }
+        } catch (Throwable t) {
+            Log.e (TAG, "error benchmarking tiles for " + spacenamewr, t);
+        } finally {
+            Lib.Ignored (pngBench.delete ());
+            Lib.Ignored (rawBench.delete ());
+        }
+
+        if (ntiles > 0) {
+            Log.i (TAG, "tile format benchmark " + spacenamewr + ": tiles=" + ntiles +
+                    " png avgus=" + (pngns / ntiles / 1000) + " avgkb=" + (pngbytes / ntiles / 1024) +
+                    " raw avgus=" + (rawns / ntiles / 1000) + " avgkb=" + (rawbytes / ntiles / 1024));
+        }
+    }
+
+    /**
+     * Makes scaled tile files for PrebuildScaledTiles().
+     * Several of these run at once, each taking the next tile from the list.
+     */
+    private static class PrebuildThread extends Thread {
+        private ArrayList<AirTile> tiles;
+        private AtomicInteger next;
+        private AtomicInteger done;
+
+        public PrebuildThread (ArrayList<AirTile> tiles, AtomicInteger next, AtomicInteger done)
+        {
+            this.tiles = tiles;
+            this.next  = next;
+            this.done  = done;
+            setName ("AirChart prebuild");
+            setPriority (MIN_PRIORITY);
+        }
+
+        @Override
+        public void run ()
+        {
+            int i;
+            while ((i = next.getAndIncrement ()) < tiles.size ()) {
+                AirTile tile = tiles.get (i);
+                try {
+                    tile.getPngName ();
+                    if (!tile.pngFile.exists ()) tile.CreatePngFile ().recycle ();
+                } catch (Throwable t) {
+                    Log.e (TAG, "error prebuilding " + tile.pngName, t);
+                }
+                done.incrementAndGet ();
+            }
         }
     }
 
@@ -0,0 +1,427 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+package com.outerworldapps.wairtonow;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Process-wide accounting of chart tile bitmaps.
+ *
+ * Tiles that get drawn are kept on a least-recently-drawn list.  When the
+ * total size goes over budget, the oldest tiles not drawn within the last
+ * second are evicted, whatever chart they belong to.
+ *
+ * Bitmaps no longer needed are kept on a free list so decoding the next
+ * tile of the same size can re-use one via inBitmap instead of allocating.
+ *
+ * Also reads and writes raw pixel files, ie, a small header followed by the
+ * bitmap's pixels exactly as they are in memory, so they can be read and
+ * copied straight into a bitmap without any decompression.
+ */
+public class BitmapPool {
+    private final static String TAG = "WairToNow";
+
+    private final static long BUDGET   = Runtime.getRuntime ().maxMemory () / 4;
+    private final static long FREEMAX  = BUDGET / 8;
+    private final static long MINAGEMS = 1000;
+
+    // raw pixel file header: magic, width, height, config, bytes per row
+    private final static int RAWMAGIC = 0x57545231;  // "WTR1"
+    private final static int RAWHDRSIZE = 20;
+    private final static int RAWARGB8888 = 4;
+    private final static int RAWRGB565 = 2;
+
+    // drawn bitmaps, least recently drawn first
+    private static Entry lruHead;
+    private static Entry lruTail;
+    private static long cachedBytes;
+
+    // bitmaps available for re-use, least recently freed first
+    private final static LinkedList<Bitmap> freeBitmaps = new LinkedList<> ();
+
+    // raw tile files are read into this per-thread buffer, grown as needed
+    private final static ThreadLocal<ByteBuffer> rawBuffers = new ThreadLocal<> ();
+    private static long freeBytes;
+
+    private static long numAllocated;
+    private static long numEvicted;
+    private static long numReused;
+
+    /**
+     * Something that holds a drawn bitmap, eg, a chart tile.
+     */
+    public static abstract class Entry {
+        private boolean linked;
+        private Entry lruNext;
+        private Entry lruPrev;
+        private long bytes;
+        private long lastUsed;
+
+        /**
+         * Cache is over budget and this entry hasn't been drawn lately.
+         * Owner must forget about its bitmap then pass it to free().
+         * Called in GUI thread.
+         */
+        protected abstract void evict ();
+    }
+
+    /**
+     * Entry's bitmap was just drawn.
+     * Called in GUI thread.
+     */
+    public static void used (Entry e, Bitmap bm)
+    {
+        synchronized (BitmapPool.class) {
+            if (e.linked) {
+                unlink (e);
+            } else {
+                e.linked = true;
+                e.bytes  = Bytes (bm);
+                cachedBytes += e.bytes;
+            }
+            e.lastUsed = System.currentTimeMillis ();
+            e.lruNext  = null;
+            e.lruPrev  = lruTail;
+            if (lruTail == null) lruHead = e;
+            else lruTail.lruNext = e;
+            lruTail = e;
+        }
+    }
+
+    /**
+     * Owner is done with entry's bitmap on its own.
+     */
+    public static void forget (Entry e)
+    {
+        synchronized (BitmapPool.class) {
+            if (e.linked) {
+                unlink (e);
+                e.linked = false;
+                cachedBytes -= e.bytes;
+            }
+        }
+    }
+
+    /**
+     * Evict entries not drawn recently until back under budget.
+     * Called in GUI thread after drawing.
+     */
+    public static void trim ()
+    {
+        long tooold = System.currentTimeMillis () - MINAGEMS;
+        Entry victims = null;
+        int nvictims = 0;
+        synchronized (BitmapPool.class) {
+            while ((cachedBytes > BUDGET) && (lruHead != null) && (lruHead.lastUsed < tooold)) {
+                Entry e = lruHead;
+                unlink (e);
+                e.linked = false;
+                cachedBytes -= e.bytes;
+                e.lruNext = victims;
+                victims = e;
+                nvictims ++;
+            }
+            numEvicted += nvictims;
+        }
+
+        // call owners outside lock as they probably lock their own stuff
+        while (victims != null) {
+            Entry e = victims;
+            victims = e.lruNext;
+            e.lruNext = null;
+            e.evict ();
+        }
+
+        if (nvictims > 0) {
+            Log.d (TAG, "BitmapPool: evicted=" + nvictims + " cached=" + (cachedBytes >> 10) +
+                    "K free=" + (freeBytes >> 10) + "K total evicted=" + numEvicted +
+                    " reused=" + numReused + " allocated=" + numAllocated);
+        }
+    }
+
+    /**
+     * See if there is room in the budget to load tiles that aren't on screen yet.
+     * Leaves a quarter of the budget for tiles that are on screen.
+     */
+    public static boolean roomToPrefetch ()
+    {
+        synchronized (BitmapPool.class) {
+            return cachedBytes < BUDGET / 4 * 3;
+        }
+    }
+
+    /**
+     * Bitmap no longer referenced by anything, keep it for re-use if possible.
+     * @param bm = bitmap being freed (or null)
+     */
+    public static void free (Bitmap bm)
+    {
+        if ((bm == null) || bm.isRecycled ()) return;
+        if (!bm.isMutable () || ((bm.getConfig () != Bitmap.Config.ARGB_8888) &&
+                (bm.getConfig () != Bitmap.Config.RGB_565))) {
+            bm.recycle ();
+            return;
+        }
+        synchronized (BitmapPool.class) {
+            freeBitmaps.addLast (bm);
+            freeBytes += Bytes (bm);
+            while (freeBytes > FREEMAX) {
+                Bitmap old = freeBitmaps.removeFirst ();
+                freeBytes -= Bytes (old);
+                old.recycle ();
+            }
+        }
+    }
+
+    /**
+     * Read bitmap from file, re-using a free bitmap if one the same size is available.
+     * @return bitmap or null if corrupt
+     */
+    public static Bitmap decodeFile (final String path)
+            throws IOException
+    {
+        return decode (new Source () {
+            @Override
+            public InputStream open () throws IOException
+            {
+                return new FileInputStream (path);
+            }
+        });
+    }
+
+    /**
+     * Read bitmap from zip file, re-using a free bitmap if one the same size is available.
+     * @return bitmap or null if corrupt
+     */
+    public static Bitmap decodeZipEntry (final ZipFile zf, String name)
+            throws IOException
+    {
+        final ZipEntry ze = zf.getEntry (name);
+        if (ze == null) throw new FileNotFoundException (zf.getName () + " " + name);
+        return decode (new Source () {
+            @Override
+            public InputStream open () throws IOException
+            {
+                return zf.getInputStream (ze);
+            }
+        });
+    }
+
+    private interface Source {
+        InputStream open () throws IOException;
+    }
+
+    private static Bitmap decode (Source src)
+            throws IOException
+    {
+        // get size of bitmap so we can find a free one the same size
+        BitmapFactory.Options bfo = new BitmapFactory.Options ();
+        bfo.inJustDecodeBounds = true;
+        InputStream is = src.open ();
+        try {
+            BitmapFactory.decodeStream (is, null, bfo);
+        } finally {
+            is.close ();
+        }
+        if ((bfo.outWidth <= 0) || (bfo.outHeight <= 0)) return null;
+
+        // decode into free bitmap if we have one
+        Bitmap reuse = obtain (bfo.outWidth, bfo.outHeight, Bitmap.Config.ARGB_8888);
+        bfo.inJustDecodeBounds = false;
+        bfo.inMutable = true;
+        bfo.inSampleSize = 1;
+        bfo.inBitmap = reuse;
+        Bitmap bm;
+        is = src.open ();
+        try {
+            bm = BitmapFactory.decodeStream (is, null, bfo);
+        } catch (IllegalArgumentException iae) {
+            // decoder couldn't use it after all
+            bm = null;
+        } finally {
+            is.close ();
+        }
+        if ((bm != null) && (bm == reuse)) {
+            synchronized (BitmapPool.class) {
+                numReused ++;
+            }
+            return bm;
+        }
+        if (reuse != null) {
+            free (reuse);
+            if (bm != null) return bm;
+
+            // try again without re-using
+            bfo.inBitmap = null;
+            is = src.open ();
+            try {
+                bm = BitmapFactory.decodeStream (is, null, bfo);
+            } finally {
+                is.close ();
+            }
+        }
+        if (bm != null) {
+            synchronized (BitmapPool.class) {
+                numAllocated ++;
+            }
+        }
+        return bm;
+    }
+
+    /**
+     * Write bitmap to a raw pixel file.
+     * Uses RGB_565 if all pixels are opaque, else ARGB_8888.
+     * @param pixels = pixels of bitmap, width*height of them
+     */
+    public static void writeRawFile (String path, int[] pixels, int width, int height)
+            throws IOException
+    {
+        boolean opaque = true;
+        for (int i = width * height; -- i >= 0;) {
+            if ((pixels[i] >>> 24) != 0xFF) {
+                opaque = false;
+                break;
+            }
+        }
+        Bitmap.Config config = opaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        Bitmap bm = Bitmap.createBitmap (pixels, width, height, config);
+        try {
+            int rowbytes = bm.getRowBytes ();
+            ByteBuffer buf = ByteBuffer.allocate (RAWHDRSIZE + rowbytes * height);
+            buf.putInt (RAWMAGIC);
+            buf.putInt (width);
+            buf.putInt (height);
+            buf.putInt (opaque ? RAWRGB565 : RAWARGB8888);
+            buf.putInt (rowbytes);
+            bm.copyPixelsToBuffer (buf);
+            FileOutputStream os = new FileOutputStream (path);
+            try {
+                os.write (buf.array (), 0, buf.position ());
+            } finally {
+                os.close ();
+            }
+        } finally {
+            bm.recycle ();
+        }
+    }
+
+    /**
+     * Read bitmap from a raw pixel file into a reused buffer and copy the pixels
+     * straight into a free bitmap if one the same size and config is available.
+     * @return mutable bitmap or null if corrupt
+     */
+    public static Bitmap decodeRawFile (String path)
+            throws IOException
+    {
+        FileInputStream is = new FileInputStream (path);
+        try {
+            FileChannel fc = is.getChannel ();
+            long len = fc.size ();
+            if ((len < RAWHDRSIZE) || (len > Integer.MAX_VALUE)) return null;
+            ByteBuffer buf = rawBuffers.get ();
+            if ((buf == null) || (buf.capacity () < len)) {
+                buf = ByteBuffer.allocateDirect ((int) len);
+                rawBuffers.set (buf);
+            }
+            buf.clear ();
+            buf.limit ((int) len);
+            while (buf.hasRemaining ()) {
+                if (fc.read (buf) < 0) return null;
+            }
+            buf.flip ();
+            if (buf.getInt () != RAWMAGIC) return null;
+            int width    = buf.getInt ();
+            int height   = buf.getInt ();
+            int bpp      = buf.getInt ();
+            int rowbytes = buf.getInt ();
+            if ((width <= 0) || (height <= 0)) return null;
+            if (rowbytes < width * bpp) return null;
+            if (len != RAWHDRSIZE + (long) rowbytes * height) return null;
+            Bitmap.Config config;
+            switch (bpp) {
+                case RAWARGB8888: config = Bitmap.Config.ARGB_8888; break;
+                case RAWRGB565:   config = Bitmap.Config.RGB_565;   break;
+                default: return null;
+            }
+
+            Bitmap bm = obtain (width, height, config);
+            synchronized (BitmapPool.class) {
+                if (bm != null) numReused ++;
+                else numAllocated ++;
+            }
+            if (bm == null) bm = Bitmap.createBitmap (width, height, config);
+            if (bm.getRowBytes () != rowbytes) {
+                // written by something with different row padding
+                free (bm);
+                return null;
+            }
+            bm.copyPixelsFromBuffer (buf);
+            return bm;
+        } finally {
+            is.close ();
+        }
+    }
+
+    // get free bitmap of the given size and config, null if none
+    private static Bitmap obtain (int width, int height, Bitmap.Config config)
+    {
+        synchronized (BitmapPool.class) {
+            for (Iterator<Bitmap> it = freeBitmaps.iterator (); it.hasNext ();) {
+                Bitmap bm = it.next ();
+                if ((bm.getWidth () == width) && (bm.getHeight () == height) && (bm.getConfig () == config)) {
+                    it.remove ();
+                    freeBytes -= Bytes (bm);
+                    return bm;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static void unlink (Entry e)
+    {
+        if (e.lruPrev == null) lruHead = e.lruNext;
+        else e.lruPrev.lruNext = e.lruNext;
+        if (e.lruNext == null) lruTail = e.lruPrev;
+        else e.lruNext.lruPrev = e.lruPrev;
+        e.lruNext = null;
+        e.lruPrev = null;
+    }
+
+    private static long Bytes (Bitmap bm)
+    {
+        return (long) bm.getRowBytes () * bm.getHeight ();
+    }
+}
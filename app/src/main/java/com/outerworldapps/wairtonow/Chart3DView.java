@@ -28,7 +28,6 @@ import android.graphics.Path;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.util.Log;
-import android.util.SparseArray;
 import android.view.MotionEvent;
 import android.view.View;
 
@@ -448,7 +447,6 @@ public class Chart3DView extends GLSurfaceView implements ChartView.Backing {
         private float[] mMVPMatrixF = new float[16];
         private EarthSector closeSectors;
         private EarthSector knownSectors;
-        private SparseArray<Short> knownHighestElevations = new SparseArray<> ();
         private int cameraPointed;
         private int slatMin, nlatMin, wlonMin, elonMin;
         public  int mWidth, mHeight;
@@ -513,7 +511,6 @@ public class Chart3DView extends GLSurfaceView implements ChartView.Backing {
             maTextureHandle = 0;
 
             EarthSector.ClearLoader ();
-            Topography.purge ();
         }
 
         /**
@@ -1110,22 +1107,9 @@ public class Chart3DView extends GLSurfaceView implements ChartView.Backing {
          */
         private short GetHighestElev (int ilatmin, int ilonmin, int l2stepmin)
         {
-            int key = (l2stepmin << 29) + ((ilatmin & 0x3FFF) << 15) + (ilonmin & 0x7FFF);
-            if (knownHighestElevations.indexOfKey (key) >= 0) {
-                return knownHighestElevations.get (key);
-            }
             int stepmin = 1 << l2stepmin;
-            short highest = 0;
-            for (int ilat = ilatmin; ilat < ilatmin + stepmin; ilat ++) {
-                for (int jlon = ilonmin; jlon <= ilonmin + stepmin; jlon ++) {
-                    int ilon = jlon;
-                    if (ilon >= 180 * 60) ilon -= 360 * 60;
-                    short elev = Topography.getElevMetres (ilat / 60.0, ilon / 60.0);
-                    if (highest < elev) highest = elev;
-                }
-            }
-            knownHighestElevations.put (key, highest);
-            return highest;
+            short highest = Topography.getHighestElev (ilatmin, ilonmin, stepmin, stepmin + 1);
+            return (short) Math.max (highest, 0);
         }
 
         /**
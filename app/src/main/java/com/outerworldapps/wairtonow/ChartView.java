@@ -271,6 +271,14 @@ public class ChartView extends FrameLayout implements WairToNow.CanBeMainView {
         return wairToNow.optionsView.powerLockOption.checkBox.isChecked ();
     }
 
+    /**
+     * See if showing 3D chart (Chart3DView) rather than 2D chart (Chart2DView).
+     */
+    public boolean Is3DChart ()
+    {
+        return use3DChart;
+    }
+
     /**
      * This screen is no longer current.
      */
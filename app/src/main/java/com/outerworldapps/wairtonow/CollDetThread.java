@@ -23,15 +23,18 @@ package com.outerworldapps.wairtonow;
 import android.database.Cursor;
 import android.util.Log;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 
 /**
  * Check for obstacle and terrain collisions.
- * Scans the database every 10 seconds based on current aircraft position, heading and climb rate.
+ * Woken by each GPS update, it sweeps more often the faster the aircraft is moving or climbing,
+ * based on current aircraft position, heading and climb rate.
+ * Arcs already swept are kept as long as the aircraft stays on course,
+ * so only the new leading edge arcs need to be swept.
  * Chart2D then reads the collision points whenever it wants to build the display.
+ * Once the cell cache has warmed up, a sweep does not allocate any memory.
  */
 public class CollDetThread extends Thread {
     public final static String TAG = "WairToNow";
@@ -43,29 +46,317 @@ public class CollDetThread extends Thread {
     private final static int padding_met = 10;
     private final static int nearbyaptnm = 2;
     private final static int minrwylenft = 1500;
+    private final static int expirecycles = 120;    // cycles are one second each
+    private final static int minsweepms  = 1000;
+    private final static int maxsweepms  = 8192;
+    private final static int climbsampms = 4096;
+    private final static double sweepstepnm = 0.25;
+    private final static double rebasenm    = 2.0;  // max distance along sweep line before starting new one
+    private final static double rebasexnm   = 0.125;  // max distance off sweep line
+    private final static double rebasedegs  = 5.0;  // max heading change from sweep line
+    private final static double rebasealtmet = 15.0;  // max altitude off sweep line (typical GPS vertical error)
+    private final static double rebaseclimb = 60.0;  // max smoothed climb rate change (metres per nm, ~400fpm at 120kts)
+    private final static double climbsmooth = 0.25;  // weight of newest climb rate sample
+
+    // llmin value that can never be a real lat,lon
+    private final static int EMPTY = Integer.MIN_VALUE;
+
+    /**
+     * Collision points published for the UI thread.
+     * Never modified once published, so the UI thread can keep using one
+     * for as long as it wants.  A new one is made only when the points change.
+     */
+    public static class BadLLMins {
+        public final int count;       // number of entries in llmins[]
+        public final int[] llmins;    // <31:16> = latitude minutes; <15:00> = longitude minutes
+
+        public BadLLMins (int[] list, int count)
+        {
+            this.count  = count;
+            this.llmins = Arrays.copyOf (list, count);
+        }
+
+        // see if this has the same points as the given list
+        public boolean equals (int[] list, int count)
+        {
+            if (this.count != count) return false;
+            for (int i = 0; i < count; i ++) {
+                if (llmins[i] != list[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Open-addressing cache of highest elevation and runway presence, keyed by llmin.
+     * An entry not used for expirecycles cycles is expired and its slot can be
+     * re-used by a new entry without having to remove it first.
+     */
+    private static class CellCache {
+        public int[] keys;          // llmin, EMPTY if slot never used
+        public int[] cycles;        // cycle entry last used
+        public int[] elevmets;      // max(obstrs,topo) metres
+        public boolean[] rwys;      // has a runway
+
+        private int mask;           // table size - 1
+        private int used;           // number of slots not EMPTY
+
+        // spare arrays the same size as the above for rehashing into
+        private int[] sparekeys;
+        private int[] sparecycles;
+        private int[] spareelevmets;
+        private boolean[] sparerwys;
+
+        public CellCache (int size)
+        {
+            allocate (size);
+        }
+
+        /**
+         * Find slot for the given cell.
+         * @return slot number, -1 if not in cache
+         */
+        public int find (int llmin)
+        {
+            for (int i = hash (llmin) & mask;; i = (i + 1) & mask) {
+                int k = keys[i];
+                if (k == llmin) return i;
+                if (k == EMPTY) return -1;
+            }
+        }
+
+        /**
+         * Get slot for a cell not already in cache.
+         * Caller must fill in elevmets[] and rwys[].
+         */
+        public int add (int llmin, int cycle)
+        {
+            if (used >= (mask + 1) / 4 * 3) rehash (cycle);
+            int i = hash (llmin) & mask;
+            while (true) {
+                if (keys[i] == EMPTY) {
+                    used ++;
+                    break;
+                }
+                if (cycles[i] < cycle - expirecycles) break;
+                i = (i + 1) & mask;
+            }
+            keys[i]   = llmin;
+            cycles[i] = cycle;
+            return i;
+        }
+
+        /**
+         * Table is getting full, squeeze out expired entries.
+         * Only grow the table if it is still more than half full.
+         */
+        private void rehash (int cycle)
+        {
+            int[] oldkeys = keys;
+            int[] oldcycles = cycles;
+            int[] oldelevmets = elevmets;
+            boolean[] oldrwys = rwys;
+
+            int live = 0;
+            for (int i = 0; i < oldkeys.length; i ++) {
+                if ((oldkeys[i] != EMPTY) && (oldcycles[i] >= cycle - expirecycles)) live ++;
+            }
+            if (live * 2 > oldkeys.length) {
+                allocate (oldkeys.length * 2);
+            } else {
+                keys = sparekeys;
+                cycles = sparecycles;
+                elevmets = spareelevmets;
+                rwys = sparerwys;
+                sparekeys = oldkeys;
+                sparecycles = oldcycles;
+                spareelevmets = oldelevmets;
+                sparerwys = oldrwys;
+                for (int i = 0; i < keys.length; i ++) keys[i] = EMPTY;
+                used = 0;
+            }
+
+            for (int j = 0; j < oldkeys.length; j ++) {
+                int llmin = oldkeys[j];
+                if ((llmin != EMPTY) && (oldcycles[j] >= cycle - expirecycles)) {
+                    int i = hash (llmin) & mask;
+                    while (keys[i] != EMPTY) i = (i + 1) & mask;
+                    keys[i]     = llmin;
+                    cycles[i]   = oldcycles[j];
+                    elevmets[i] = oldelevmets[j];
+                    rwys[i]     = oldrwys[j];
+                    used ++;
+                }
+            }
+        }
+
+        private void allocate (int size)
+        {
+            keys     = new int[size];
+            cycles   = new int[size];
+            elevmets = new int[size];
+            rwys     = new boolean[size];
+            sparekeys     = new int[size];
+            sparecycles   = new int[size];
+            spareelevmets = new int[size];
+            sparerwys     = new boolean[size];
+            for (int i = 0; i < size; i ++) keys[i] = EMPTY;
+            mask = size - 1;
+            used = 0;
+        }
+    }
+
+    /**
+     * Set of llmins found to be collided, along with the arc distance each was found at.
+     * Cleared by bumping the generation number rather than wiping the table.
+     */
+    private static class BadSet {
+        public int count;           // number of entries in list[]
+        public int[] list;          // entries in order added
+        public float[] nms;         // arc distance (nm from sweep origin) entry last found at
+
+        private int gen = 1;        // current generation
+        private int mask;           // table size - 1
+        private int[] keys;         // llmin
+        private int[] gens;         // generation slot was filled in, slot empty if not current
+        private int[] idxs;         // index in list[] for the llmin
+
+        public BadSet (int size)
+        {
+            list = new int[size];
+            nms  = new float[size];
+            allocate (size * 2);
+        }
 
-    private static class Cache {
-        int cycle;      // cycle last used
-        int elevmet;    // elevation metres
-        boolean rwy;    // has a runway
+        public void clear ()
+        {
+            gen ++;
+            count = 0;
+        }
+
+        public void add (int llmin, double nm)
+        {
+            int i = hash (llmin) & mask;
+            while (gens[i] == gen) {
+                if (keys[i] == llmin) {
+                    nms[idxs[i]] = (float) nm;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            if (count == list.length) {
+                grow ();
+                i = hash (llmin) & mask;
+                while (gens[i] == gen) i = (i + 1) & mask;
+            }
+            keys[i] = llmin;
+            gens[i] = gen;
+            idxs[i] = count;
+            nms[count]    = (float) nm;
+            list[count++] = llmin;
+        }
+
+        // remove all entries found at arcs closer than the given distance
+        // they are now behind the aircraft
+        public void dropBelow (double minnm)
+        {
+            int j = 0;
+            for (int i = 0; i < count; i ++) {
+                if (nms[i] >= minnm) {
+                    list[j] = list[i];
+                    nms[j]  = nms[i];
+                    j ++;
+                }
+            }
+            if (j < count) {
+                count = j;
+                gen ++;
+                rebuild ();
+            }
+        }
+
+        // double the size, keeping table at most half full
+        private void grow ()
+        {
+            int[] newlist = new int[list.length*2];
+            float[] newnms = new float[list.length*2];
+            System.arraycopy (list, 0, newlist, 0, count);
+            System.arraycopy (nms, 0, newnms, 0, count);
+            list = newlist;
+            nms  = newnms;
+            allocate (list.length * 2);
+            rebuild ();
+        }
+
+        private void allocate (int size)
+        {
+            keys = new int[size];
+            gens = new int[size];
+            idxs = new int[size];
+            mask = size - 1;
+        }
+
+        // re-enter list[] into hash table using current generation
+        private void rebuild ()
+        {
+            for (int j = 0; j < count; j ++) {
+                int i = hash (list[j]) & mask;
+                while (gens[i] == gen) i = (i + 1) & mask;
+                keys[i] = list[j];
+                gens[i] = gen;
+                idxs[i] = j;
+            }
+        }
+    }
+
+    /**
+     * Highest obstruction and runway presence for each minute of a one-degree area,
+     * so the sweep doesn't need a database query for each minute it looks at.
+     * Filled in with one obstruction query and one runway query per waypoint database.
+     */
+    private static class DegGrid {
+        public int key = EMPTY;     // ilatdeg<<16 | ilondeg&0xFFFF
+        public int used;            // deggridclock when last used
+        public short[] obsmets = new short[3600];   // highest obstruction MSL metres, indexed by latmin*60+lonmin
+        public long[] rwybits  = new long[(3600+63)/64];  // set if runway begins within 1nm
+
+        public boolean hasRunway (int k)
+        {
+            return (rwybits[k>>6] & (1L << (k & 63))) != 0;
+        }
     }
 
+    private static int hash (int llmin)
+    {
+        int h = llmin * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private final static int numdeggrids = 9;
+
+    private DegGrid[] deggrids;
+    private int deggridclock;
     private int nearbyaptilatmin;
     private int nearbyaptilonmin;
-    private int[] badllmins = new int[0];
+    private final static BadLLMins nobadllmins = new BadLLMins (new int[0], 0);
+    private volatile BadLLMins badllmins = nobadllmins;
+    private ArrayList<RunwayCache.Row> rwyrows = new ArrayList<> ();
     private LinkedList<LatLon> nearbyaptlatlons;
     private SQLiteDBs obssqldb;
     private WairToNow wairToNow;
+    private WakeableSleep sleeper;
 
-    private final static String[] ob_cols = new String[] { "ob_msl" };
-    private final static String[] rwy_cols = new String[] { "rwy_beglat", "rwy_beglon", "rwy_endlat", "rwy_endlon" };
+    private final static String[] ob_cols = new String[] { "ob_lat", "ob_lon", "ob_msl" };
 
     public CollDetThread (WairToNow wtn)
     {
         setName ("CollDetThread");
         setPriority (MIN_PRIORITY);
         nearbyaptlatlons = new LinkedList<> ();
+        deggrids = new DegGrid[numdeggrids];
+        for (int i = 0; i < numdeggrids; i ++) deggrids[i] = new DegGrid ();
         wairToNow = wtn;
+        sleeper = new WakeableSleep ();
         start ();
     }
 
@@ -73,24 +364,48 @@ public class CollDetThread extends Thread {
     public void run ()
     {
         try {
-            double oldalt = 0.0;
-            double oldlat = 0.0;
-            double oldlon = 0.0;
-            long oldtime  = 0;
+            // sample used to measure climb rate
+            boolean haveclimb = false;
+            double climbrt = 0.0;   // metres per nm, smoothed
+            double refalt  = 0.0;
+            double reflat  = 0.0;
+            double reflon  = 0.0;
+            long   reftime = 0;
+
+            // line the arcs are measured along
+            // subsequent sweeps just extend the arcs while the aircraft stays on it
+            boolean haveorigin = false;
+            double orgalt   = 0.0;
+            double orgclimb = 0.0;
+            double orghdg   = 0.0;
+            double orglat   = 0.0;
+            double orglon   = 0.0;
+            double nmnext   = 0.0;  // next arc to sweep
+            double landingnm = -1.0;  // arc a runway was found on, -1 if none
 
             // latlonmin -> max(obstrs,topo) metres
-            HashMap<Integer,Cache> cache = new HashMap<> ();
-            int cycle = 0;
+            CellCache cache = new CellCache (4096);
+            long started = System.currentTimeMillis ();
 
             // latlonmin found to be collided
-            HashSet<Integer> newbadlls = new HashSet<> ();
+            BadSet badlls = new BadSet (256);
+
+            long lastsweep = 0;
+            long nextms = maxsweepms;
 
             //noinspection InfiniteLoopStatement
             while (true) {
-                Thread.sleep (4096 - System.currentTimeMillis () % 4096);
 
-                // build new hash set
-                newbadlls.clear ();
+                // woken by each GPS update, sweep only when enough has changed
+                sleeper.sleep (nextms);
+                long now = System.currentTimeMillis ();
+                long intms = sweepInterval (wairToNow.currentGPSSpd, haveclimb ? climbrt : 0.0);
+                if (now - lastsweep < intms) {
+                    nextms = intms - (now - lastsweep);
+                    continue;
+                }
+                lastsweep = now;
+                nextms = intms;
 
                 // get current position
                 double curlat  = wairToNow.currentGPSLat;
@@ -100,13 +415,31 @@ public class CollDetThread extends Thread {
                 double spdmps  = wairToNow.currentGPSSpd;
                 double hdgdeg  = wairToNow.currentGPSHdg;
 
+                // update climb rate every few seconds
+                // much more often than that and it is just noise
+                // even then GPS altitude is noisy so smooth it over several samples
+                if (curtime - reftime >= climbsampms) {
+                    if (reftime > 0) {
+                        double distnm = Lib.LatLonDist (curlat, curlon, reflat, reflon);
+                        if (distnm > 0.0) {
+                            double sample = (curalt - refalt) / distnm;
+                            climbrt = haveclimb ? climbrt + climbsmooth * (sample - climbrt) : sample;
+                            haveclimb = true;
+                        }
+                    }
+                    reftime = curtime;
+                    reflat  = curlat;
+                    reflon  = curlon;
+                    refalt  = curalt;
+                }
+
                 // we must be going a particular minimum speed
                 // and be enabled on the options page
-                if ((oldtime > 0) && (spdmps > WairToNow.gpsMinSpeedMPS) &&
+                if (haveclimb && (spdmps > WairToNow.gpsMinSpeedMPS) &&
                         wairToNow.optionsView.collDetOption.checkBox.isChecked ()) {
 
                     // new cycle for cache entries
-                    cycle ++;
+                    int cycle = (int) ((now - started) / 1000);
 
                     // try to open obstructions if not open
                     // ie, maybe just downloaded for first time
@@ -114,99 +447,154 @@ public class CollDetThread extends Thread {
                         int expdate = wairToNow.maintView.GetCurentObstructionExpDate ();
                         if (expdate > 0) {
                             obssqldb = SQLiteDBs.open ("nobudb/obstructions_" + expdate + ".db");
+                            if (obssqldb != null) {
+                                for (DegGrid dg : deggrids) dg.key = EMPTY;
+                                haveorigin = false;
+                            }
                         }
                     }
 
-                    if (! nearbyairport (curlat, curlon)) {
+                    if (nearbyairport (curlat, curlon)) {
+                        haveorigin = false;
+                        badlls.clear ();
+                    } else {
 
                         // calculate how far we can fly in the maxsecswarn period from now
                         double maxnm = spdmps * Lib.KtPerMPS * maxsecswarn / 3600.0;
-
-                        // get current climb rate (metres per nm)
-                        double climbrt = (curalt - oldalt) / Lib.LatLonDist (curlat, curlon, oldlat, oldlon);
-
-                        // sweep through each arc at 0.5nm steps
                         double minnm = spdmps * Lib.KtPerMPS * minsecswarn / 3600.0;
-                    nmloop:
-                        for (double nm = minnm - 0.25; nm < maxnm + 0.25; nm += 0.5) {
-                            double alt_met = curalt + climbrt * nm;     // altitude (metres) for this arc
-
-                            // sweep nm-radius arc from left to right
-                            double step_deg = Math.toDegrees (0.5 / nm);  // degrees to step 0.5nm
-                            int nsteps = (int) Math.ceil (sweepdegs / step_deg);
-                            for (int step = -nsteps; step <= nsteps; step++) {
-
-                                // round lat,lon to nearest minute
-                                double deltadeg = step_deg * step;
-                                double deg = hdgdeg + deltadeg;
-                                double lat = Lib.LatHdgDist2Lat (curlat, deg, nm);
-                                double lon = Lib.LatLonHdgDist2Lon (curlat, curlon, deg, nm);
-                                int llmin = (((int) Math.round (lat * 60.0)) << 16) | (((int) Math.round (lon * 60.0)) & 0xFFFF);
-
-                                // make sure there is a cache entry for that lat,lon
-                                Cache ce = cache.get (llmin);
-                                if (ce == null) {
-                                    ce = readCacheEntry (llmin);
-                                    cache.put (llmin, ce);
-                                }
-                                ce.cycle = cycle;
 
-                                // see if there is an obstruction in the way
-                                if (alt_met < ce.elevmet + padding_met) {
-                                    newbadlls.add (llmin);
+                        // see how far along the sweep line we are
+                        // if we have wandered off of it, start a new one from here
+                        // altitude and climb tolerances are wider than GPS altitude noise
+                        // else the line would be abandoned on nearly every update
+                        double along = 0.0;
+                        boolean online = haveorigin;
+                        if (online) {
+                            double distnm = Lib.LatLonDist (orglat, orglon, curlat, curlon);
+                            double cross  = 0.0;
+                            if (distnm > 0.001) {
+                                double offrad = Math.toRadians (Lib.LatLonTC (orglat, orglon, curlat, curlon) - orghdg);
+                                along = distnm * Math.cos (offrad);
+                                cross = distnm * Math.sin (offrad);
+                            }
+                            double hdgdiff = ((hdgdeg - orghdg) % 360.0 + 540.0) % 360.0 - 180.0;
+                            online = (along >= 0.0) && (along <= rebasenm) &&
+                                    (Math.abs (cross) <= rebasexnm) &&
+                                    (Math.abs (hdgdiff) <= rebasedegs) &&
+                                    (Math.abs (orgalt + orgclimb * along - curalt) <= rebasealtmet) &&
+                                    (Math.abs (climbrt - orgclimb) <= rebaseclimb) &&
+                                    ((landingnm < 0.0) || (landingnm >= along + minnm - 0.25));
+                        }
+                        if (online) {
+                            // forget about points we have gone by
+                            badlls.dropBelow (along + minnm - 0.25);
+                        } else {
+                            haveorigin = true;
+                            orgalt    = curalt;
+                            orgclimb  = climbrt;
+                            orghdg    = hdgdeg;
+                            orglat    = curlat;
+                            orglon    = curlon;
+                            nmnext    = minnm - 0.25;
+                            landingnm = -1.0;
+                            along     = 0.0;
+                            badlls.clear ();
+                        }
 
-                                    // if colliding with a runway, assume it is a normal landing
-                                    if (ce.rwy && (Math.abs (deltadeg) < runwaydegs)) {
-                                        newbadlls.clear ();
-                                        break nmloop;
+                        // sweep through each new arc at 0.5nm steps
+                        // if landing, nothing to sweep until we get past the runway
+                        if (landingnm < 0.0) {
+                            double nm;
+                        nmloop:
+                            for (nm = nmnext; nm < along + maxnm + 0.25; nm += 0.5) {
+                                double alt_met = orgalt + orgclimb * nm;    // altitude (metres) for this arc
+
+                                // sweep nm-radius arc from left to right
+                                double step_deg = Math.toDegrees (0.5 / nm);  // degrees to step 0.5nm
+                                int nsteps = (int) Math.ceil (sweepdegs / step_deg);
+                                for (int step = -nsteps; step <= nsteps; step++) {
+
+                                    // round lat,lon to nearest minute
+                                    double deltadeg = step_deg * step;
+                                    double deg = orghdg + deltadeg;
+                                    double lat = Lib.LatHdgDist2Lat (orglat, deg, nm);
+                                    double lon = Lib.LatLonHdgDist2Lon (orglat, orglon, deg, nm);
+                                    int llmin = (((int) Math.round (lat * 60.0)) << 16) | (((int) Math.round (lon * 60.0)) & 0xFFFF);
+
+                                    // make sure there is a cache entry for that lat,lon
+                                    int ce = cache.find (llmin);
+                                    if (ce < 0) {
+                                        ce = cache.add (llmin, cycle);
+                                        readCacheEntry (llmin, cache, ce);
+                                    }
+                                    cache.cycles[ce] = cycle;
+
+                                    // see if there is an obstruction in the way
+                                    if (alt_met < cache.elevmets[ce] + padding_met) {
+                                        badlls.add (llmin, nm);
+
+                                        // if colliding with a runway, assume it is a normal landing
+                                        if (cache.rwys[ce] && (Math.abs (deltadeg) < runwaydegs)) {
+                                            badlls.clear ();
+                                            landingnm = nm;
+                                            break nmloop;
+                                        }
                                     }
                                 }
                             }
+                            nmnext = nm;
                         }
                     }
-                }
-
-                // make new points available
-                int newsize = newbadlls.size ();
-                if (newsize == badllmins.length) {
-                    int i = 0;
-                    for (Integer llmin : newbadlls) {
-                        badllmins[i++] = llmin;
-                    }
                 } else {
-                    int[] newarr = new int[newsize];
-                    int i = 0;
-                    for (Integer llmin : newbadlls) {
-                        newarr[i++] = llmin;
-                    }
-                    badllmins = newarr;
+                    haveorigin = false;
+                    badlls.clear ();
                 }
 
-                // save old position so we can measure climb rate
-                oldtime = curtime;
-                oldlat  = curlat;
-                oldlon  = curlon;
-                oldalt  = curalt;
-
-                // remove old unused cache entries
-                for (Iterator<Cache> it = cache.values ().iterator (); it.hasNext ();) {
-                    Cache ce = it.next ();
-                    if (ce.cycle < cycle - 5) it.remove ();
+                // make new points available
+                // usually the same as last time so don't make a new one
+                if (! badllmins.equals (badlls.list, badlls.count)) {
+                    badllmins = (badlls.count == 0) ? nobadllmins : new BadLLMins (badlls.list, badlls.count);
                 }
             }
         } catch (Exception e) {
             Log.e (TAG, "exception in ColDetThread", e);
         } finally {
             SQLiteDBs.CloseAll ();
-            badllmins = new int[0];
+            badllmins = nobadllmins;
         }
     }
 
-    public int[] getBadLLMins ()
+    /**
+     * Position just updated by GPS, see if it is time for another sweep.
+     */
+    public void gpsUpdated ()
+    {
+        sleeper.wake ();
+    }
+
+    /**
+     * Get latest collision points.
+     * Caller must not modify it.
+     */
+    public BadLLMins getBadLLMins ()
     {
         return badllmins;
     }
 
+    // how often to sweep given current speed and climb rate
+    // sweep every sweepstepnm travelled and every half padding climbed or descended
+    private static long sweepInterval (double spdmps, double climbrt)
+    {
+        if (spdmps <= WairToNow.gpsMinSpeedMPS) return maxsweepms;
+        double nmpersec = spdmps * Lib.KtPerMPS / 3600.0;
+        double ms = sweepstepnm / nmpersec * 1000.0;
+        double vsmps = Math.abs (climbrt) * nmpersec;
+        if (vsmps * ms > padding_met * 500.0) ms = padding_met * 500.0 / vsmps;
+        if (ms < minsweepms) ms = minsweepms;
+        if (ms > maxsweepms) ms = maxsweepms;
+        return (long) ms;
+    }
+
     // see if there is an airport nearby
     private boolean nearbyairport (double curlat, double curlon)
     {
@@ -223,25 +611,16 @@ public class CollDetThread extends Thread {
             double lolon = ilonmin / 60.0 - dlon;
             double hilon = ilonmin / 60.0 + dlon;
             for (SQLiteDBs wptsqldb : wairToNow.maintView.getWaypointDBs ()) {
-                Cursor result = wptsqldb.query ("runways", rwy_cols,
-                        "rwy_beglat>=" + lolat + " AND rwy_beglat<=" + hilat + " AND rwy_beglon>=" +
-                                lolon + " AND rwy_beglon<=" + hilon, null, null, null, null, null);
-                try {
-                    if (result.moveToFirst ()) do {
-                        double beglat = result.getDouble (0);
-                        double beglon = result.getDouble (1);
-                        double endlat = result.getDouble (2);
-                        double endlon = result.getDouble (3);
-                        double lennm  = Lib.LatLonTC (beglat, beglon, endlat, endlon);
-                        if (lennm >= minrwylenft / Lib.FtPerNM) {
-                            LatLon ll = new LatLon ();
-                            ll.lat = beglat;
-                            ll.lon = beglon;
-                            nearbyaptlatlons.add (ll);
-                        }
-                    } while (result.moveToNext ());
-                } finally {
-                    result.close ();
+                rwyrows.clear ();
+                RunwayCache.GetRunwaysWithin (wptsqldb, lolat, hilat, lolon, hilon, rwyrows);
+                for (RunwayCache.Row row : rwyrows) {
+                    double lennm = Lib.LatLonTC (row.beglat, row.beglon, row.endlat, row.endlon);
+                    if (lennm >= minrwylenft / Lib.FtPerNM) {
+                        LatLon ll = new LatLon ();
+                        ll.lat = row.beglat;
+                        ll.lon = row.beglon;
+                        nearbyaptlatlons.add (ll);
+                    }
                 }
             }
         }
@@ -260,70 +639,101 @@ public class CollDetThread extends Thread {
     //  input:
     //   llmin<31:16> = latitude minutes
     //   llmin<15:00> = longitude minutes
+    //   cache,slot = where to put results
     //  output:
-    //   returns highest (metres)
-    private Cache readCacheEntry (int llmin)
+    //   cache.elevmets[slot] = highest (metres)
+    //   cache.rwys[slot] = has a runway
+    private void readCacheEntry (int llmin, CellCache cache, int slot)
     {
-        double lat = (llmin >> 16) / 60.0;
-        double lon = ((short) llmin) / 60.0;
+        int ilatmin = llmin >> 16;
+        int ilonmin = (short) llmin;
 
         // see if there is topography in the way
-        int elev_met = Topography.getElevMetres (lat, lon);
+        int elev_met = Topography.getElevMetres (ilatmin / 60.0, ilonmin / 60.0);
 
         // see if there are any obstructions higher than that
-        if (obssqldb != null) {
-            double minlat = lat - 0.5 / 60.0;
-            double maxlat = lat + 0.5 / 60.0;
-            double minlon = lon - 0.5 / 60.0;
-            double maxlon = lon + 0.5 / 60.0;
-            int minmsl = (int) Math.round (elev_met * Lib.FtPerM);
-            Cursor result = obssqldb.query ("obstrs", ob_cols,
-                    "ob_lat>=" + minlat + " AND ob_lat<=" + maxlat + " AND ob_lon>=" +
-                            minlon + " AND ob_lon<=" + maxlon + " AND ob_msl>" + minmsl,
-                    null, null, null, null, null);
-            try {
-                if (result.moveToFirst ()) {
-                    do {
-                        int msl_met = (int) Math.round (result.getInt (0) / Lib.FtPerM);
-                        if (elev_met < msl_met) elev_met = msl_met;
-                    } while (result.moveToNext ());
-                }
-            } finally {
-                result.close ();
+        int ilatdeg = (ilatmin + 60000) / 60 - 1000;
+        int ilondeg = (ilonmin + 60000) / 60 - 1000;
+        DegGrid dg  = getDegGrid (ilatdeg, ilondeg);
+        int k = (ilatmin - ilatdeg * 60) * 60 + (ilonmin - ilondeg * 60);
+        if (elev_met < dg.obsmets[k]) elev_met = dg.obsmets[k];
+
+        cache.elevmets[slot] = elev_met;
+
+        // see if it is a runway
+        cache.rwys[slot] = dg.hasRunway (k);
+    }
+
+    // get obstruction and runway grid for the given degree
+    // re-uses the least recently used grid if not already loaded
+    private DegGrid getDegGrid (int ilatdeg, int ilondeg)
+    {
+        int key = (ilatdeg << 16) | (ilondeg & 0xFFFF);
+        DegGrid lru = deggrids[0];
+        for (DegGrid dg : deggrids) {
+            if (dg.key == key) {
+                dg.used = ++ deggridclock;
+                return dg;
             }
+            if (lru.used > dg.used) lru = dg;
         }
+        lru.key  = key;
+        lru.used = ++ deggridclock;
+        readDegGrid (lru, ilatdeg, ilondeg);
+        return lru;
+    }
 
-        Cache ce = new Cache ();
-        ce.elevmet = elev_met;
+    // fill in grid from obstruction and runway databases
+    private void readDegGrid (DegGrid dg, int ilatdeg, int ilondeg)
+    {
+        Arrays.fill (dg.obsmets, Short.MIN_VALUE);
+        Arrays.fill (dg.rwybits, 0);
 
-        // see if it is a runway
-        double minlat = Lib.LatHdgDist2Lat (lat, 180.0, 1.0);
-        double maxlat = Lib.LatHdgDist2Lat (lat,   0.0, 1.0);
-        double minlon = Lib.LatLonHdgDist2Lon (lat, lon, -90.0, 1.0);
-        double maxlon = Lib.LatLonHdgDist2Lon (lat, lon,  90.0, 1.0);
-        for (SQLiteDBs wptsqldb : wairToNow.maintView.getWaypointDBs ()) {
-            Cursor result = wptsqldb.query ("runways", rwy_cols,
-                    "rwy_beglat>" + minlat + " AND rwy_beglat<" + maxlat +
-                    " AND rwy_beglon>" + minlon + " AND rwy_beglon<" + maxlon,
-                    null, null, null, null, null);
+        int slatmin = ilatdeg * 60;
+        int wlonmin = ilondeg * 60;
+
+        // get highest obstruction rounding to each minute of the degree
+        if (obssqldb != null) {
+            Cursor result = obssqldb.query ("obstrs", ob_cols,
+                    "ob_lat>=? AND ob_lat<? AND ob_lon>=? AND ob_lon<?",
+                    new String[] { Double.toString ((slatmin - 0.5) / 60.0), Double.toString ((slatmin + 59.5) / 60.0),
+                            Double.toString ((wlonmin - 0.5) / 60.0), Double.toString ((wlonmin + 59.5) / 60.0) },
+                    null, null, null, null);
             try {
                 if (result.moveToFirst ()) do {
-                    double beglat = result.getDouble (0);
-                    double beglon = result.getDouble (1);
-                    double endlat = result.getDouble (2);
-                    double endlon = result.getDouble (3);
-                    double lennm  = Lib.LatLonTC (beglat, beglon, endlat, endlon);
-                    if (lennm >= minrwylenft / Lib.FtPerNM) {
-                        ce.rwy = true;
-                        break;
+                    int i = (int) Math.round (result.getDouble (0) * 60.0) - slatmin;
+                    int j = (int) Math.round (result.getDouble (1) * 60.0) - wlonmin;
+                    if ((i >= 0) && (i < 60) && (j >= 0) && (j < 60)) {
+                        int msl_met = (int) Math.round (result.getInt (2) / Lib.FtPerM);
+                        if (msl_met > Short.MAX_VALUE) msl_met = Short.MAX_VALUE;
+                        if (dg.obsmets[i*60+j] < msl_met) dg.obsmets[i*60+j] = (short) msl_met;
                     }
                 } while (result.moveToNext ());
-                ce.rwy = result.moveToFirst ();
             } finally {
                 result.close ();
             }
         }
 
-        return ce;
+        // mark minutes within 1nm of the beginning of a runway
+        double coslat = Math.cos (Math.toRadians (Math.min (Math.max (Math.abs (ilatdeg), Math.abs (ilatdeg + 1)), 89)));
+        double margin = 1.0 / coslat;
+        for (SQLiteDBs wptsqldb : wairToNow.maintView.getWaypointDBs ()) {
+            rwyrows.clear ();
+            RunwayCache.GetRunwaysWithin (wptsqldb, (slatmin - 1.0) / 60.0, (slatmin + 61.0) / 60.0,
+                    (wlonmin - margin) / 60.0, (wlonmin + 60.0 + margin) / 60.0, rwyrows);
+            for (RunwayCache.Row row : rwyrows) {
+                double beglatmin = row.beglat * 60.0;
+                double beglonmin = row.beglon * 60.0;
+                double dlonmin   = 1.0 / Math.cos (Math.toRadians (beglatmin / 60.0));
+                for (int i = (int) Math.ceil (beglatmin - 1.0); i <= (int) Math.floor (beglatmin + 1.0); i ++) {
+                    if ((i < slatmin) || (i >= slatmin + 60) || (Math.abs (i - beglatmin) >= 1.0)) continue;
+                    for (int j = (int) Math.ceil (beglonmin - dlonmin); j <= (int) Math.floor (beglonmin + dlonmin); j ++) {
+                        if ((j < wlonmin) || (j >= wlonmin + 60) || (Math.abs (j - beglonmin) >= dlonmin)) continue;
+                        int k = (i - slatmin) * 60 + (j - wlonmin);
+                        dg.rwybits[k>>6] |= 1L << (k & 63);
+                    }
+                }
+            }
+        }
     }
 }
@@ -302,13 +302,18 @@ public class EarthSector {
         float mbmHeight = mBitmap.getHeight ();
         int k = 0;
 
+        // get all the elevations in one pass through the topography tiles
+        short[] elevs = new short[numVertices];
+        Topography.getElevGrid (islat, iwlon, nlats + 1, nlons + 1, minsperstep, elevs);
+        int e = 0;
+
         for (int ilat = islat; ilat <= inlat; ilat += minsperstep) {
             for (int jlon = iwlon; jlon <= jelon; jlon += minsperstep) {
                 int ilon  = jlon;
                 if (ilon >= 180 * 60) ilon -= 360 * 60;
                 double lat = ilat / 60.0;
                 double lon = ilon / 60.0;
-                int alt = Topography.getElevMetresZ (lat, lon);
+                int alt = Math.max (elevs[e++], 0);  // includes INVALID_ELEV
 
                 // fill in x,y,z for the lat/lon
                 LatLonAlt2XYZ (lat, lon, alt, xyz);
@@ -151,7 +151,7 @@ public class MaintView
     private static final int MaintViewHandlerWhat_OPENDELPROG  = 8;
 
     private final static String PARTIAL = ".tmp";
-    private final static String[] columns_count_rp_icaoid = new String[] { "COUNT(rp_icaoid)" };
+    private final static String sql_count_rp_icaoid = "SELECT COUNT(rp_icaoid) FROM rwypreloads2";
     private final static String[] columns_cp_legs         = new String[] { "cp_legs" };
 
     // get the URL we download from
@@ -899,43 +899,34 @@ public class MaintView
         SQLiteDBs sqldb = SQLiteDBs.open (dbname);
         if (sqldb != null) {
             if (sqldb.tableExists ("rwypreloads2")) {
-                Cursor cursor = sqldb.query (
-                        "rwypreloads2", columns_count_rp_icaoid,
-                        null, null, null, null, null, null);
-                try {
-                    int n = 0;
-                    if (cursor.moveToFirst ()) {
-                        n = cursor.getInt (0);
-                    }
+                // called every time a tile is downloaded, so use a statement compiled just once
+                long n = sqldb.queryLong (sql_count_rp_icaoid, null);
 
-                    /*
-                     * Update text box with number of records.
-                     */
-                    if (n == 0) {
-                        runwayDiagramDownloadStatus.setText ("");
-                        runwayDiagramDownloadStatus.setVisibility (GONE);
-                    } else {
-                        StringBuilder sb = new StringBuilder ();
-                        sb.append ("  ");
-                        sb.append (n);
-                        sb.append (" remaining runway diagram background");
-                        if (n != 1) sb.append ('s');
-                        sb.append (" to download");
-                        Waypoint.Airport aptwp = downloadingRunwayDiagram;
-                        if (aptwp != null) {
-                            sb.append (" (");
-                            sb.append (aptwp.faaident);
-                            if (! aptwp.ident.equals (aptwp.faaident)) {
-                                sb.append ('/');
-                                sb.append (aptwp.ident);
-                            }
-                            sb.append (')');
+                /*
+                 * Update text box with number of records.
+                 */
+                if (n == 0) {
+                    runwayDiagramDownloadStatus.setText ("");
+                    runwayDiagramDownloadStatus.setVisibility (GONE);
+                } else {
+                    StringBuilder sb = new StringBuilder ();
+                    sb.append ("  ");
+                    sb.append (n);
+                    sb.append (" remaining runway diagram background");
+                    if (n != 1) sb.append ('s');
+                    sb.append (" to download");
+                    Waypoint.Airport aptwp = downloadingRunwayDiagram;
+                    if (aptwp != null) {
+                        sb.append (" (");
+                        sb.append (aptwp.faaident);
+                        if (! aptwp.ident.equals (aptwp.faaident)) {
+                            sb.append ('/');
+                            sb.append (aptwp.ident);
                         }
-                        runwayDiagramDownloadStatus.setText (sb);
-                        runwayDiagramDownloadStatus.setVisibility (VISIBLE);
+                        sb.append (')');
                     }
-                } finally {
-                    cursor.close ();
+                    runwayDiagramDownloadStatus.setText (sb);
+                    runwayDiagramDownloadStatus.setVisibility (VISIBLE);
                 }
             }
         }
@@ -1226,6 +1217,7 @@ public class MaintView
                         zis.close ();
                     }
                 }
+
                 Lib.RenameFile (topopn + PARTIAL, topopn);
                 Lib.Ignored (new File (topopn + ".zip").delete ());
                 Topography.purge ();
@@ -1387,6 +1379,9 @@ public class MaintView
             int[] last2 = PurgeDownloadedDatabases (all, "nobudb/" + filenameprefix);
             curentenddate = last2[0];
             latestenddate = last2[1];
+            Waypoint.FlushIdentCache ();
+            RunwayCache.Flush ();
+            MetafIndex.rebuild (wairToNow);
         }
 
         /**
@@ -1422,6 +1417,10 @@ public class MaintView
         @Override  // DownloadCheckBox
         public void DownloadFileComplete ()
         {
+            Waypoint.FlushIdentCache ();
+            RunwayCache.Flush ();
+            MetafIndex.rebuild (wairToNow);
+            WaypointPrefixIndex.rebuild (wairToNow);
             wairToNow.webMetarThread.sleeper.wake ();
         }
 
@@ -3088,6 +3087,28 @@ public class MaintView
                     SendPostDLProc ("purging old versions");
                     dcb.DeleteDownloadedFiles (false);
 
+                    /*
+                     * Maybe build zoomed-out tiles now so zooming out is quick from the start.
+                     */
+                    if ((dcb instanceof ChartCheckBox) && wairToNow.optionsView.preScaleOption.checkBox.isChecked ()) {
+                        ((ChartCheckBox) dcb).latestAirChart.PrebuildScaledTiles (new AirChart.PrebuildProgress () {
+                            @Override
+                            public void prebuildProgress (int done, int total)
+                            {
+                                SendPostDLProc ("building zoomed-out tiles " + done + " / " + total);
+                            }
+                        });
+                    }
+
+                    /*
+                     * Debugging: compare .png vs .raw tile read times on the new sectional.
+                     */
+                    if ((dcb instanceof ChartCheckBox) && wairToNow.optionsView.benchTilesOption.checkBox.isChecked () &&
+                            dcbspacename.endsWith (" SEC")) {
+                        SendPostDLProc ("benchmarking tile formats");
+                        ((ChartCheckBox) dcb).latestAirChart.BenchmarkTileFormats ();
+                    }
+
                     /*
                      * Clear progress dialog box from screen.
                      * Uncheck the download checkbox because it is all downloaded.
@@ -0,0 +1,291 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+package com.outerworldapps.wairtonow;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * In-memory index of airports that have METARs and/or TAFs, one per waypoint database,
+ * so the nearest reporting station to a point can be found without going to the database.
+ * Stations are kept as unit vectors in a k-d tree, so there are no problems with the
+ * date line or the poles and straight-line distance orders the same as great circle.
+ * Built in the background whenever the waypoint databases change.
+ */
+public class MetafIndex {
+    private final static String TAG = "WairToNow";
+
+    private final static DBase[] dbtagnames = new DBase[] { DBase.FAA, DBase.OA, DBase.OFM };
+
+    private static BuildThread buildThread;
+    private static HashMap<DBase,MetafIndex> current;
+
+    public final String dbname;     // database the index was built from
+
+    private Tree metars;
+    private Tree tafs;
+
+    /**
+     * Get index for the given waypoint database.
+     * If not built yet, start building it in the background.
+     * @return index or null if not available
+     */
+    public static MetafIndex get (WairToNow wtn, DBase dbtagname)
+    {
+        synchronized (MetafIndex.class) {
+            if (current != null) return current.get (dbtagname);
+            if (buildThread == null) {
+                buildThread = new BuildThread (wtn);
+                buildThread.start ();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Waypoint databases changed (eg, new cycle downloaded), rebuild the index in the background.
+     */
+    public static void rebuild (WairToNow wtn)
+    {
+        synchronized (MetafIndex.class) {
+            current = null;
+            if (buildThread == null) {
+                buildThread = new BuildThread (wtn);
+                buildThread.start ();
+            } else {
+                buildThread.again = true;
+            }
+        }
+    }
+
+    /**
+     * Find nearest station that has METARs.
+     * @param lat/lon = point to search from
+     * @param maxnm = only look this far away
+     * @return icaoid or null if none within maxnm
+     */
+    public String nearestMetar (double lat, double lon, double maxnm)
+    {
+        return metars.nearest (lat, lon, maxnm);
+    }
+
+    /**
+     * Find nearest station that has TAFs.
+     * @param lat/lon = point to search from
+     * @param maxnm = only look this far away
+     * @return icaoid or null if none within maxnm
+     */
+    public String nearestTaf (double lat, double lon, double maxnm)
+    {
+        return tafs.nearest (lat, lon, maxnm);
+    }
+
+    private MetafIndex (SQLiteDBs sqldb)
+    {
+        dbname = sqldb.mydbname;
+
+        ArrayList<Station> metlist = new ArrayList<> ();
+        ArrayList<Station> taflist = new ArrayList<> ();
+        Cursor result = sqldb.query (
+                "airports", new String[] { "apt_icaoid", "apt_lat", "apt_lon", "apt_metaf" },
+                "apt_metaf>''", null, null, null, null, null);
+        try {
+            if (result.moveToFirst ()) do {
+                Station st = new Station (result.getString (0), result.getDouble (1), result.getDouble (2));
+                String metaf = result.getString (3);
+                if (metaf.contains ("M")) metlist.add (st);
+                if (metaf.contains ("T")) taflist.add (st);
+            } while (result.moveToNext ());
+        } finally {
+            result.close ();
+        }
+
+        metars = new Tree (metlist);
+        tafs   = new Tree (taflist);
+    }
+
+    /**
+     * A station as a unit vector from center of earth.
+     */
+    private static class Station {
+        public final String icaoid;
+        public final double[] xyz = new double[3];
+
+        public Station (String icaoid, double lat, double lon)
+        {
+            this.icaoid = icaoid;
+            double coslat = Math.cos (Math.toRadians (lat));
+            xyz[0] = coslat * Math.cos (Math.toRadians (lon));
+            xyz[1] = coslat * Math.sin (Math.toRadians (lon));
+            xyz[2] = Math.sin (Math.toRadians (lat));
+        }
+    }
+
+    private final static Comparator<Station>[] comparators = MakeComparators ();
+
+    @SuppressWarnings ("unchecked")
+    private static Comparator<Station>[] MakeComparators ()
+    {
+        Comparator<Station>[] comps = new Comparator[3];
+        for (int i = 0; i < 3; i ++) {
+            final int axis = i;
+            comps[i] = new Comparator<Station> () {
+                @Override
+                public int compare (Station a, Station b)
+                {
+                    return Double.compare (a.xyz[axis], b.xyz[axis]);
+                }
+            };
+        }
+        return comps;
+    }
+
+    /**
+     * Stations in k-d tree order.
+     * The node for a subrange is its middle element, splitting on axis depth % 3.
+     * Everything before it is <= on that axis, everything after it is >=.
+     */
+    private static class Tree {
+        private Station[] stations;
+
+        public Tree (ArrayList<Station> list)
+        {
+            stations = list.toArray (new Station[list.size()]);
+            build (0, stations.length, 0);
+        }
+
+        private void build (int lo, int hi, int axis)
+        {
+            if (hi - lo < 2) return;
+            Arrays.sort (stations, lo, hi, comparators[axis]);
+            int mid = (lo + hi) >>> 1;
+            build (lo, mid, (axis + 1) % 3);
+            build (mid + 1, hi, (axis + 1) % 3);
+        }
+
+        public String nearest (double lat, double lon, double maxnm)
+        {
+            Search s = new Search (lat, lon);
+
+            // straight-line distance squared for maxnm around the earth
+            double halfangle = Math.toRadians (maxnm / Lib.NMPerDeg) / 2.0;
+            double chord = 2.0 * Math.sin (Math.min (halfangle, Math.PI / 2.0));
+            s.bestd2 = chord * chord;
+
+            search (s, 0, stations.length, 0);
+            return (s.best == null) ? null : s.best.icaoid;
+        }
+
+        private void search (Search s, int lo, int hi, int axis)
+        {
+            if (lo >= hi) return;
+            int mid = (lo + hi) >>> 1;
+            Station st = stations[mid];
+            double dx = s.xyz[0] - st.xyz[0];
+            double dy = s.xyz[1] - st.xyz[1];
+            double dz = s.xyz[2] - st.xyz[2];
+            double d2 = dx * dx + dy * dy + dz * dz;
+            if (s.bestd2 >= d2) {
+                s.bestd2 = d2;
+                s.best   = st;
+            }
+
+            // search the side the point is on first, then the other side if it might be closer
+            double diff = s.xyz[axis] - st.xyz[axis];
+            int next = (axis + 1) % 3;
+            if (diff < 0.0) {
+                search (s, lo, mid, next);
+                if (diff * diff < s.bestd2) search (s, mid + 1, hi, next);
+            } else {
+                search (s, mid + 1, hi, next);
+                if (diff * diff < s.bestd2) search (s, lo, mid, next);
+            }
+        }
+    }
+
+    private static class Search extends Station {
+        public double bestd2;
+        public Station best;
+
+        public Search (double lat, double lon)
+        {
+            super (null, lat, lon);
+        }
+    }
+
+    /**
+     * Reads the stations from the databases and builds the indexes.
+     */
+    private static class BuildThread extends Thread {
+        public boolean again;       // locked by MetafIndex.class
+
+        private WairToNow wairToNow;
+
+        public BuildThread (WairToNow wtn)
+        {
+            wairToNow = wtn;
+            setName ("MetafIndex");
+            setPriority (MIN_PRIORITY);
+        }
+
+        @Override
+        public void run ()
+        {
+            try {
+                while (true) {
+                    long started = System.currentTimeMillis ();
+                    HashMap<DBase,MetafIndex> indexes = new HashMap<> ();
+                    for (DBase dbtagname : dbtagnames) {
+                        SQLiteDBs sqldb = wairToNow.maintView.getWaypointDB (dbtagname);
+                        if (sqldb != null) {
+                            MetafIndex index = new MetafIndex (sqldb);
+                            Log.i (TAG, "metaf indexed " + index.metars.stations.length + " metars " +
+                                    index.tafs.stations.length + " tafs from " + index.dbname);
+                            indexes.put (dbtagname, index);
+                        }
+                    }
+                    Log.i (TAG, "metaf indexes built in " + (System.currentTimeMillis () - started) + " ms");
+
+                    // if databases changed while building, build it again
+                    synchronized (MetafIndex.class) {
+                        if (! again) {
+                            current = indexes;
+                            break;
+                        }
+                        again = false;
+                    }
+                }
+            } catch (Exception e) {
+                Log.e (TAG, "exception building metaf index", e);
+            } finally {
+                synchronized (MetafIndex.class) {
+                    buildThread = null;
+                }
+                SQLiteDBs.CloseAll ();
+            }
+        }
+    }
+}
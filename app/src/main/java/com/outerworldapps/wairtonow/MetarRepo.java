@@ -22,7 +22,8 @@ package com.outerworldapps.wairtonow;
 
 import android.util.Log;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Holds the current ADS-B or Web derived Metars etc for an airport.
@@ -30,6 +31,30 @@ import java.util.HashMap;
 public class MetarRepo {
     public final static String TAG = "WairToNow";
 
+    private final static int CELLDEG = 2;
+    private final static int NLATCELLS = 180 / CELLDEG;
+    private final static int NLONCELLS = 360 / CELLDEG;
+    private final static double ALTSETNM = 100.0;   // use altimeter settings within this distance
+
+    // stations that have an altimeter setting, by grid cell, read without locking
+    // a cell's array is replaced, never modified, when one of its settings changes
+    private final static AtomicReferenceArray<AltSetting[]> altSettings = new AtomicReferenceArray<> (NLATCELLS * NLONCELLS);
+
+    private static class AltSetting {
+        public final MetarRepo repo;
+        public final double lat;
+        public final double lon;
+        public final double setting;
+
+        public AltSetting (MetarRepo r)
+        {
+            repo    = r;
+            lat     = r.latitude;
+            lon     = r.longitude;
+            setting = r.altSetting;
+        }
+    }
+
     private double altSetting;
     public  double latitude;
     public  double longitude;
@@ -63,6 +88,7 @@ public class MetarRepo {
             metarTypes.put (type, types);
         }
         types.put (newmet.time, newmet);
+        double oldAltSetting = altSetting;
 
         switch (type) {
 
@@ -161,28 +187,75 @@ public class MetarRepo {
             ceilingft = newceilft;
             visibsm   = newvisibsm;
         }
+
+        if (altSetting != oldAltSetting) PublishAltSetting ();
+    }
+
+    /**
+     * Put this station's new altimeter setting in the grid.
+     * Copies the cell's array so readers never see it half updated.
+     */
+    private void PublishAltSetting ()
+    {
+        int ilat = (int) Math.floor ((latitude + 90.0) / CELLDEG);
+        int ilon = (int) Math.floor ((Lib.NormalLon (longitude) + 180.0) / CELLDEG);
+        if (ilat >= NLATCELLS) ilat = NLATCELLS - 1;
+        if (ilon >= NLONCELLS) ilon = NLONCELLS - 1;
+        int cell = ilat * NLONCELLS + ilon;
+        AltSetting as = new AltSetting (this);
+        synchronized (altSettings) {
+            AltSetting[] olds = altSettings.get (cell);
+            AltSetting[] news;
+            if (olds == null) {
+                news = new AltSetting[] { as };
+            } else {
+                int i;
+                for (i = 0; i < olds.length; i ++) {
+                    if (olds[i].repo == this) break;
+                }
+                if (i == olds.length) {
+                    news = Arrays.copyOf (olds, olds.length + 1);
+                    news[olds.length] = as;
+                } else {
+                    news = olds.clone ();
+                    news[i] = as;
+                }
+            }
+            altSettings.set (cell, news);
+        }
     }
 
     /**
      * Find closest altimeter setting to the given point.
-     * @param metarRepos = wairToNow.metarRepos
+     * Interpolates settings of stations within ALTSETNM by inverse distance.
+     * Only looks at grid cells within ALTSETNM and doesn't lock anything.
      * @param lat = leatitude of aircraft
      * @param lon = longitude of aircraft
      * @return altimeter setting (or 0 if unknown)
      */
-    public static double getAltSetting (HashMap<String,MetarRepo> metarRepos, double lat, double lon)
+    public static double getAltSetting (double lat, double lon)
     {
+        lon = Lib.NormalLon (lon);
+        double dlat = ALTSETNM / Lib.NMPerDeg;
+        double dlon = dlat / Math.cos (Math.toRadians (Math.min (Math.abs (lat) + dlat, 89.0)));
+        int ilatmin = Math.max ((int) Math.floor ((lat - dlat + 90.0) / CELLDEG), 0);
+        int ilatmax = Math.min ((int) Math.floor ((lat + dlat + 90.0) / CELLDEG), NLATCELLS - 1);
+        int ilonmin = (int) Math.floor ((lon - dlon + 180.0) / CELLDEG);
+        int nlons   = Math.min ((int) Math.floor ((lon + dlon + 180.0) / CELLDEG) - ilonmin + 1, NLONCELLS);
+
         double total = 0.0;
         double setting  = 0.0;
-        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-        synchronized (metarRepos) {
-            for (MetarRepo repo : metarRepos.values ()) {
-                if (repo.altSetting > 0.0) {
-                    double dist = Lib.LatLonDist (repo.latitude, repo.longitude, lat, lon);
-                    if (dist <= 0.5) return repo.altSetting;
-                    if (dist <= 100.0) {
+        for (int ilat = ilatmin; ilat <= ilatmax; ilat ++) {
+            for (int i = 0; i < nlons; i ++) {
+                int ilon = ((ilonmin + i) % NLONCELLS + NLONCELLS) % NLONCELLS;
+                AltSetting[] cell = altSettings.get (ilat * NLONCELLS + ilon);
+                if (cell == null) continue;
+                for (AltSetting as : cell) {
+                    double dist = Lib.LatLonDist (as.lat, as.lon, lat, lon);
+                    if (dist <= 0.5) return as.setting;
+                    if (dist <= ALTSETNM) {
                         total += 1.0 / dist;
-                        setting += repo.altSetting / dist;
+                        setting += as.setting / dist;
                     }
                 }
             }
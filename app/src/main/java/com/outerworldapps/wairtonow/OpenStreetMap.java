@@ -22,7 +22,6 @@ package com.outerworldapps.wairtonow;
 
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.Path;
@@ -107,8 +106,12 @@ public class OpenStreetMap {
 
         private final LongSparseArray<TileBitmap> openedBitmaps = new LongSparseArray<> ();
         private final LongSparseArray<TileBitmap> neededBitmaps = new LongSparseArray<> ();
+        private final LongSparseArray<TileBitmap> prefetchBitmaps = new LongSparseArray<> ();
         private TileOpenerThread tileOpenerThread;
 
+        private boolean prefetching;
+        private TrackAhead trackAhead = new TrackAhead ();
+
         private final LongSparseArray<DisplayableChart.Invalidatable> downloadBitmaps = new LongSparseArray<> ();
         private TileDownloaderThread tileDownloaderThread;
 
@@ -128,20 +131,45 @@ public class OpenStreetMap {
 
             DrawTiles (wairToNow, pmap);
 
+            // if in flight with screen following the aircraft,
+            // open tiles that will be scrolling onto the screen soon
+            if (trackAhead.compute (wairToNow, pmap) && BitmapPool.roomToPrefetch ()) {
+                prefetching = true;
+                try {
+                    for (int step = 1; step <= TrackAhead.STEPS; step ++) {
+                        shiftX = trackAhead.stepX (step);
+                        shiftY = trackAhead.stepY (step);
+                        DrawTiles (wairToNow, pmap);
+                    }
+                } finally {
+                    prefetching = false;
+                    shiftX = 0;
+                    shiftY = 0;
+                }
+            }
+
             synchronized (openedBitmaps) {
                 for (int i = openedBitmaps.size (); -- i >= 0;) {
                     TileBitmap tbm = openedBitmaps.valueAt (i);
                     if (! tbm.used) {
                         openedBitmaps.removeAt (i);
-                        if (tbm.bm != null) tbm.bm.recycle ();
+                        BitmapPool.forget (tbm);
+                        BitmapPool.free (tbm.bm);
                     }
                 }
             }
+
+            BitmapPool.trim ();
         }
 
         @Override  // TileDrawer
         public void DrawTile ()
         {
+            if (prefetching) {
+                PrefetchTile ();
+                return;
+            }
+
             /*
              * Try to draw the bitmap or start downloading it if we don't have it.
              * Meanwhile, try to draw zoomed out tile if we have one (but don't download them).
@@ -156,6 +184,39 @@ public class OpenStreetMap {
             }
         }
 
+        /**
+         * Tile will be on the canvas soon, open it if it is on flash.
+         * These are opened after all the on-screen tiles and never downloaded.
+         * Opened ones are held, and count against the BitmapPool budget, as long
+         * as they keep getting requested.  Any not opened yet are forgotten on the
+         * next Draw() so if the track changes, we stop opening tiles for the old track.
+         */
+        private void PrefetchTile ()
+        {
+            long key = ((long) tileX << 36) | ((long) tileY << 8) | zoom;
+            synchronized (openedBitmaps) {
+                TileBitmap tbm = openedBitmaps.get (key);
+                if (tbm != null) {
+                    if (!tbm.evicted) {
+                        tbm.used = true;
+                        if (tbm.bm != null) BitmapPool.used (tbm, tbm.bm);
+                        return;
+                    }
+
+                    // BitmapPool took its bitmap away, remove so the opener thread will re-open it
+                    openedBitmaps.remove (key);
+                }
+                if ((neededBitmaps.indexOfKey (key) >= 0) || (prefetchBitmaps.indexOfKey (key) >= 0)) return;
+                tbm = new TileBitmap ();
+                tbm.inval = redrawView;
+                prefetchBitmaps.put (key, tbm);
+                if (tileOpenerThread == null) {
+                    tileOpenerThread = new TileOpenerThread ();
+                    tileOpenerThread.start ();
+                }
+            }
+        }
+
         /**
          * Try to draw a single tile to the canvas, rotated, scaled and translated in place.
          * @param canvas = canvas to draw it on
@@ -172,7 +233,12 @@ public class OpenStreetMap {
             synchronized (openedBitmaps) {
 
                 // see if we have the exact tile requested already opened and ready to display
+                // if BitmapPool took its bitmap away, it has to be re-opened
                 tbm = openedBitmaps.get (key);
+                if ((tbm != null) && tbm.evicted) {
+                    openedBitmaps.remove (key);
+                    tbm = null;
+                }
                 if (tbm == null) {
 
                     // if not, request only if it is the most zoomed-in level
@@ -252,6 +318,7 @@ public class OpenStreetMap {
                     return false;  // maybe zoomed in too far so ww or hh is zero
                 }
                 canvas.drawBitmap (tile, matrix, null);
+                BitmapPool.used (tbm, tile);
             } finally {
                 if (saved) canvas.restore ();
             }
@@ -266,7 +333,8 @@ public class OpenStreetMap {
             synchronized (openedBitmaps) {
                 for (int i = openedBitmaps.size (); -- i >= 0;) {
                     TileBitmap tbm = openedBitmaps.valueAt (i);
-                    if (tbm.bm != null) tbm.bm.recycle ();
+                    BitmapPool.forget (tbm);
+                    BitmapPool.free (tbm.bm);
                 }
                 openedBitmaps.clear ();
             }
@@ -277,6 +345,7 @@ public class OpenStreetMap {
             Thread t;
             synchronized (openedBitmaps) {
                 neededBitmaps.clear ();
+                prefetchBitmaps.clear ();
                 t = tileOpenerThread;
             }
             if (wait && (t != null)) {
@@ -303,10 +372,12 @@ public class OpenStreetMap {
 
                 long key = 0;
                 TileBitmap tbm = null;
+                boolean prefetch;
                 while (true) {
 
                     // queue previously opened bitmap into openedBitmaps
                     // ...and dequeued needed bitmap from neededBitmaps
+                    // ...or if none, from prefetchBitmaps
                     // if nothing to dequeue, terminate thread
                     synchronized (openedBitmaps) {
                         if (tbm != null) {
@@ -314,16 +385,29 @@ public class OpenStreetMap {
                             tbm.inval.postInvalidate ();
                         }
                         do {
-                            if (neededBitmaps.size () == 0) {
+                            prefetch = neededBitmaps.size () == 0;
+                            LongSparseArray<TileBitmap> queue = prefetch ? prefetchBitmaps : neededBitmaps;
+                            if (queue.size () == 0) {
                                 tileOpenerThread = null;
                                 return;
                             }
-                            key = neededBitmaps.keyAt (0);
-                            tbm = neededBitmaps.valueAt (0);
-                            neededBitmaps.removeAt (0);
+                            key = queue.keyAt (0);
+                            tbm = queue.valueAt (0);
+                            queue.removeAt (0);
                         } while (openedBitmaps.indexOfKey (key) >= 0);
                     }
 
+                    // prefetched tiles are only opened if exact one is already on flash
+                    if (prefetch) {
+                        int tileIX = (int) (key >> 36) & 0x0FFFFFFF;
+                        int tileIY = (int) (key >>  8) & 0x0FFFFFFF;
+                        int zoomLevel = (int) key & 0xFF;
+                        tbm.bm = ReadTileBitmap (tileIX, tileIY, zoomLevel, false);
+                        if (tbm.bm == null) tbm = null;
+                        else tbm.used = true;
+                        continue;
+                    }
+
                     // open the requested tile or one at an outer zoom level
                     // do not request any tile be downloaded from server yet
                     int tileIX = (int) (key >> 36) & 0x0FFFFFFF;
@@ -389,10 +473,20 @@ public class OpenStreetMap {
         }
     }
 
-    private static class TileBitmap {
+    private static class TileBitmap extends BitmapPool.Entry {
         public DisplayableChart.Invalidatable inval;  // callback when tile gets loaded
         public Bitmap bm;                             // bitmap (or null if not on flash or corrupt)
         public boolean used;                          // was used this cycle
+        public boolean evicted;                       // BitmapPool took bitmap away
+
+        @Override  // BitmapPool.Entry
+        protected void evict ()
+        {
+            Bitmap b = bm;
+            bm = null;
+            evicted = true;
+            BitmapPool.free (b);
+        }
     }
 
     /**
@@ -400,8 +494,10 @@ public class OpenStreetMap {
      * It does a callback to DrawTile() for each tile needed.
      */
     private abstract class TileDrawer {
+        protected double shiftX, shiftY;  // canvas pixels to shift canvas by before scanning
         protected float[] canvaspts = new float[8];
         protected int tileX, tileY, zoom;
+        private LatLon shiftedll = new LatLon ();
         protected PointD northwestcanpix = new PointD ();
         protected PointD northeastcanpix = new PointD ();
         protected PointD southwestcanpix = new PointD ();
@@ -477,10 +573,29 @@ public class OpenStreetMap {
             /*
              * See what range of tile numbers are needed to cover the canvas.
              */
-            int maxTileY = (int) lat2TileY (pmap.canvasSouthLat);
-            int minTileY = (int) lat2TileY (pmap.canvasNorthLat);
-            int minTileX = (int) lon2TileX (pmap.canvasWestLon);
-            int maxTileX = (int) lon2TileX (pmap.canvasEastLon);
+            double southLat = pmap.canvasSouthLat;
+            double northLat = pmap.canvasNorthLat;
+            double westLon  = pmap.canvasWestLon;
+            double eastLon  = pmap.canvasEastLon;
+            if ((shiftX != 0) || (shiftY != 0)) {
+                for (int i = 0; i < 4; i ++) {
+                    pmap.CanPix2LatLonAprox (shiftX + (((i & 1) == 0) ? 0 : w),
+                            shiftY + (((i & 2) == 0) ? 0 : h), shiftedll);
+                    if (i == 0) {
+                        southLat = northLat = shiftedll.lat;
+                        westLon  = eastLon  = shiftedll.lon;
+                    } else {
+                        southLat = Math.min (southLat, shiftedll.lat);
+                        northLat = Math.max (northLat, shiftedll.lat);
+                        westLon  = Lib.Westmost (westLon, shiftedll.lon);
+                        eastLon  = Lib.Eastmost (eastLon, shiftedll.lon);
+                    }
+                }
+            }
+            int maxTileY = (int) lat2TileY (southLat);
+            int minTileY = (int) lat2TileY (northLat);
+            int minTileX = (int) lon2TileX (westLon);
+            int maxTileX = (int) lon2TileX (eastLon);
 
             /*
              * Loop through all the possible tiles to cover the canvas.
@@ -504,16 +619,20 @@ public class OpenStreetMap {
                     pmap.LatLon2CanPixAprox (southlat, eastlon, southeastcanpix);
 
                     /*
-                     * If tile completely off the canvas, don't bother with it.
+                     * If tile completely off the (possibly shifted) canvas, don't bother with it.
                      */
-                    if ((northwestcanpix.x < 0) && (northeastcanpix.x < 0) &&
-                            (southwestcanpix.x < 0) && (southeastcanpix.x < 0)) continue;
-                    if ((northwestcanpix.y < 0) && (northeastcanpix.y < 0) &&
-                            (southwestcanpix.y < 0) && (southeastcanpix.y < 0)) continue;
-                    if ((northwestcanpix.x > w) && (northeastcanpix.x > w) &&
-                            (southwestcanpix.x > w) && (southeastcanpix.x > w)) continue;
-                    if ((northwestcanpix.y > h) && (northeastcanpix.y > h) &&
-                            (southwestcanpix.y > h) && (southeastcanpix.y > h)) continue;
+                    double l = shiftX;
+                    double t = shiftY;
+                    double r = shiftX + w;
+                    double b = shiftY + h;
+                    if ((northwestcanpix.x < l) && (northeastcanpix.x < l) &&
+                            (southwestcanpix.x < l) && (southeastcanpix.x < l)) continue;
+                    if ((northwestcanpix.y < t) && (northeastcanpix.y < t) &&
+                            (southwestcanpix.y < t) && (southeastcanpix.y < t)) continue;
+                    if ((northwestcanpix.x > r) && (northeastcanpix.x > r) &&
+                            (southwestcanpix.x > r) && (southeastcanpix.x > r)) continue;
+                    if ((northwestcanpix.y > b) && (northeastcanpix.y > b) &&
+                            (southwestcanpix.y > b) && (southeastcanpix.y > b)) continue;
 
                     /*
                      * At least some part of tile is on canvas, draw it.
@@ -790,10 +909,12 @@ public class OpenStreetMap {
             /*
              * Read flash file into memorie.
              */
-            Bitmap bm = BitmapFactory.decodeFile (permname);
+            Bitmap bm = BitmapPool.decodeFile (permname);
             if (bm == null) throw new IOException ("bitmap corrupt");
             if ((bm.getWidth () != BitmapSize) || (bm.getHeight () != BitmapSize)) {
-                throw new IOException ("bitmap bad size " + bm.getWidth () + "," + bm.getHeight ());
+                String size = bm.getWidth () + "," + bm.getHeight ();
+                BitmapPool.free (bm);
+                throw new IOException ("bitmap bad size " + size);
             }
             return bm;
         } catch (Exception e) {
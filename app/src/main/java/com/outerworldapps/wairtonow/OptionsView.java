@@ -83,14 +83,17 @@ public class OptionsView
     private final static String fontSizeDefault = "Medium";
     private final static NNLinkedHashMap<String,Integer> fontSizeMap = getFontSizeMap ();
 
+    public  CheckOption  benchTilesOption;
     public  CheckOption  capGridOption;
     public  CheckOption  collDetOption;
     public  CheckOption  dbFAAOption;
+    public  CheckOption  dbStatsOption;
     public  DbEnOption   dbOAOption;
     public  DbEnOption   dbOFMOption;
     public  CheckOption  gpsCompassOption;
     public  CheckOption  invPlaColOption;
     public  CheckOption  powerLockOption;
+    public  CheckOption  preScaleOption;
     public  CheckOption  showNexrad;
     public  CheckOption  showTraffic;
     public  CheckOption  showWxSumDot;
@@ -181,7 +184,10 @@ public class OptionsView
         synthILSDMEOption = new CheckOption ("Show Synth ILS/DME Plates",   false);
         typeBOption       = new TypeBOption ();
         powerLockOption   = new CheckOption ("Power Lock",                  false);
+        preScaleOption    = new CheckOption ("Prebuild zoomed-out chart tiles on download", false);
         gpsCompassOption  = new CheckOption ("GPS status compass",          false);
+        dbStatsOption     = new DbStatsOption ();
+        benchTilesOption  = new CheckOption ("Benchmark sectional tile formats on download (debug)", false);
         showNexrad        = new CheckOption ("Show ADS-B Nexrad (2D only)", false);
         showTraffic       = new CheckOption ("Show ADS-B Traffic",          false);
         showWxSumDot      = new CheckOption ("Show Wx Summary Dots",        false);
@@ -253,12 +259,15 @@ public class OptionsView
         ll1.addView (userWPOption);
         ll1.addView (invPlaColOption);
         ll1.addView (synthILSDMEOption);
+        ll1.addView (preScaleOption);
         ll1.addView (typeBOption);
         ll1.addView (showNexrad);
         ll1.addView (showTraffic);
         ll1.addView (showWxSumDot);
         ll1.addView (powerLockOption);
         ll1.addView (gpsCompassOption);
+        ll1.addView (dbStatsOption);
+        ll1.addView (benchTilesOption);
         ll1.addView (chartTrackOption);
         ll1.addView (magTrueOption);
         ll1.addView (latLonOption);
@@ -413,7 +422,10 @@ public class OptionsView
                 if (name.equals ("synthILSDMEs")) synthILSDMEOption.setCheckedNoWrite (valu.equals (boolTrue));
                 if (name.equals ("typeB"))        typeBOption.setCheckedNoWrite       (valu.equals (boolTrue));
                 if (name.equals ("powerLock"))    powerLockOption.setCheckedNoWrite   (valu.equals (boolTrue));
+                if (name.equals ("preScale"))     preScaleOption.setCheckedNoWrite    (valu.equals (boolTrue));
                 if (name.equals ("gpsCompass"))   gpsCompassOption.setCheckedNoWrite  (valu.equals (boolTrue));
+                if (name.equals ("dbStats"))      dbStatsOption.setCheckedNoWrite     (valu.equals (boolTrue));
+                if (name.equals ("benchTiles"))   benchTilesOption.setCheckedNoWrite  (valu.equals (boolTrue));
                 if (name.equals ("showNexrad"))   showNexrad.setCheckedNoWrite        (valu.equals (boolTrue));
                 if (name.equals ("showTraffic"))  showTraffic.setCheckedNoWrite       (valu.equals (boolTrue));
                 if (name.equals ("showWxSumDot")) showWxSumDot.setCheckedNoWrite      (valu.equals (boolTrue));
@@ -452,7 +464,10 @@ public class OptionsView
                 csvwriter.write ("synthILSDMEs," + synthILSDMEOption.checkBox.isChecked () + "\n");
                 csvwriter.write ("typeB,"        + typeBOption.checkBox.isChecked ()       + "\n");
                 csvwriter.write ("powerLock,"    + powerLockOption.checkBox.isChecked ()   + "\n");
+                csvwriter.write ("preScale,"     + preScaleOption.checkBox.isChecked ()    + "\n");
                 csvwriter.write ("gpsCompass,"   + gpsCompassOption.checkBox.isChecked ()  + "\n");
+                csvwriter.write ("dbStats,"      + dbStatsOption.checkBox.isChecked ()     + "\n");
+                csvwriter.write ("benchTiles,"   + benchTilesOption.checkBox.isChecked ()  + "\n");
                 csvwriter.write ("showNexrad,"   + showNexrad.checkBox.isChecked ()        + "\n");
                 csvwriter.write ("showTraffic,"  + showTraffic.checkBox.isChecked ()       + "\n");
                 csvwriter.write ("showWxSumDot," + showWxSumDot.checkBox.isChecked ()      + "\n");
@@ -955,6 +970,23 @@ public class OptionsView
         }
     }
 
+    /**
+     * Debugging option to collect database query timing and log it to logcat on pause.
+     */
+    public class DbStatsOption extends CheckOption {
+        public DbStatsOption ()
+        {
+            super ("Log database query timing (debug)", false);
+        }
+
+        @Override
+        public void onCheckedChanged (CompoundButton buttonView, boolean isChecked)
+        {
+            super.onCheckedChanged (buttonView, isChecked);
+            SQLiteDBs.statsEnabled = isChecked;
+        }
+    }
+
     /**
      * Database enable checkbox that has an associated warning box.
      */
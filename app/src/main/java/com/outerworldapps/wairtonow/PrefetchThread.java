@@ -0,0 +1,203 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+
+package com.outerworldapps.wairtonow;
+
+import android.database.Cursor;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+
+/**
+ * Warm topography and obstruction data along projected track
+ * so foreground lookups (3D view, collision detection) don't stall
+ * when crossing into a new one-degree area.
+ * Runs every 4 seconds, halfway between collision detection sweeps,
+ * when collision detection is enabled or the 3D chart is being shown.
+ * Parked while the app is in the background.
+ */
+public class PrefetchThread extends Thread {
+    public final static String TAG = "WairToNow";
+
+    private final static int lookaheadsecs = 300;  // project track this far ahead
+    private final static double marginnm   = 5.0;  // also this far either side of track
+    private final static double stepnm     = 1.0;  // sample track every this far
+    private final static int maxobsdegs    = 64;   // remember this many obstruction degrees warmed
+
+    private boolean parked;
+    private boolean terminated;
+    private int obsexpdate;
+    private long cycles;
+    private long obsdegswarmed;
+    private long topotilesloaded;
+    private SparseBooleanArray obsdegs;
+    private SQLiteDBs obssqldb;
+    private WairToNow wairToNow;
+    private final Object parkLock = new Object ();
+
+    private final static String[] ob_cols = new String[] { "ob_msl" };
+
+    public PrefetchThread (WairToNow wtn)
+    {
+        setName ("PrefetchThread");
+        setPriority (MIN_PRIORITY);
+        obsdegs = new SparseBooleanArray ();
+        wairToNow = wtn;
+        start ();
+    }
+
+    // app going to background, stop prefetching until unparked
+    public void park ()
+    {
+        synchronized (parkLock) {
+            parked = true;
+        }
+    }
+
+    // app back in foreground, resume prefetching
+    public void unpark ()
+    {
+        synchronized (parkLock) {
+            parked = false;
+            parkLock.notifyAll ();
+        }
+    }
+
+    // app being destroyed, make thread exit
+    public void terminate ()
+    {
+        synchronized (parkLock) {
+            terminated = true;
+            parkLock.notifyAll ();
+        }
+    }
+
+    // number of times track has been projected
+    public long getCycles () { return cycles; }
+
+    // number of degree areas of obstructions read ahead of need
+    public long getObsDegsWarmed () { return obsdegswarmed; }
+
+    // number of topography tiles read in ahead of need
+    // compare with Topography.getCacheMisses () to see how often foreground still misses
+    public long getTopoTilesLoaded () { return topotilesloaded; }
+
+    @Override  // Thread
+    public void run ()
+    {
+        try {
+            while (waitForCycle ()) {
+
+                // get current position
+                double curlat = wairToNow.currentGPSLat;
+                double curlon = wairToNow.currentGPSLon;
+                double spdmps = wairToNow.currentGPSSpd;
+                double hdgdeg = wairToNow.currentGPSHdg;
+
+                // we must be going a particular minimum speed for heading to be valid
+                if (spdmps <= WairToNow.gpsMinSpeedMPS) continue;
+
+                // skip if nothing will be using the data
+                // ie, collision detection turned off and not showing 3D chart
+                boolean colldet = wairToNow.optionsView.collDetOption.checkBox.isChecked ();
+                boolean chart3d = (wairToNow.chartView != null) && wairToNow.chartView.Is3DChart ();
+                if (! colldet && ! chart3d) continue;
+                cycles ++;
+
+                // try to open obstructions if not open or new revision downloaded
+                int expdate = wairToNow.maintView.GetCurentObstructionExpDate ();
+                if (obsexpdate != expdate) {
+                    obsexpdate = expdate;
+                    obssqldb   = (expdate > 0) ? SQLiteDBs.open ("nobudb/obstructions_" + expdate + ".db") : null;
+                    obsdegs.clear ();
+                }
+
+                // step along projected track, including a margin either side
+                double maxnm = spdmps * Lib.KtPerMPS * lookaheadsecs / 3600.0;
+                for (double nm = 0.0; nm <= maxnm + marginnm; nm += stepnm) {
+                    double lat = Lib.LatHdgDist2Lat (curlat, hdgdeg, nm);
+                    double lon = Lib.LatLonHdgDist2Lon (curlat, curlon, hdgdeg, nm);
+                    prefetchPoint (lat, lon);
+                    prefetchPoint (Lib.LatHdgDist2Lat (lat, hdgdeg - 90.0, marginnm),
+                            Lib.LatLonHdgDist2Lon (lat, lon, hdgdeg - 90.0, marginnm));
+                    prefetchPoint (Lib.LatHdgDist2Lat (lat, hdgdeg + 90.0, marginnm),
+                            Lib.LatLonHdgDist2Lon (lat, lon, hdgdeg + 90.0, marginnm));
+                }
+            }
+        } catch (Exception e) {
+            Log.e (TAG, "exception in PrefetchThread", e);
+        } finally {
+            SQLiteDBs.CloseAll ();
+        }
+    }
+
+    /**
+     * Wait for the next 4 second cycle, staying parked while the app is in the background.
+     * @return false if thread should exit
+     */
+    private boolean waitForCycle () throws InterruptedException
+    {
+        synchronized (parkLock) {
+            if (! terminated) parkLock.wait (4096 - (System.currentTimeMillis () + 2048) % 4096);
+            if (parked && ! terminated) {
+
+                // release database handles so files marked for delete can be deleted
+                SQLiteDBs.CloseAll ();
+                obssqldb   = null;
+                obsexpdate = 0;
+                do {
+                    parkLock.wait ();
+                } while (parked && ! terminated);
+            }
+            return ! terminated;
+        }
+    }
+
+    /**
+     * Make sure the data covering the given point is in memory.
+     */
+    private void prefetchPoint (double lat, double lon)
+    {
+        if (Topography.prefetch (lat, lon)) topotilesloaded ++;
+
+        // read all obstructions in the degree area so their database pages get cached
+        if (obssqldb != null) {
+            int ilatdeg = (int) Math.floor (lat);
+            int ilondeg = (int) Math.floor (lon);
+            int key = (ilatdeg << 16) + (ilondeg & 0xFFFF);
+            if (! obsdegs.get (key)) {
+                if (obsdegs.size () >= maxobsdegs) obsdegs.clear ();
+                obsdegs.put (key, true);
+                Cursor result = obssqldb.query ("obstrs", ob_cols,
+                        "ob_lat>=? AND ob_lat<? AND ob_lon>=? AND ob_lon<?",
+                        new String[] { Integer.toString (ilatdeg), Integer.toString (ilatdeg + 1),
+                                Integer.toString (ilondeg), Integer.toString (ilondeg + 1) },
+                        null, null, null, null);
+                try {
+                    //noinspection StatementWithEmptyBody
+                    while (result.moveToNext ()) { }
+                } finally {
+                    result.close ();
+                }
+                obsdegswarmed ++;
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+package com.outerworldapps.wairtonow;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Runways of waypoint databases, bulk-loaded one lat/lon tile at a time.
+ * A tile holds all runways of all airports whose reference point is in that tile,
+ * so getting runways for airports near one another is a memory lookup.
+ * Tiles are evicted least recently used first.
+ */
+public class RunwayCache {
+    private final static String TAG = "WairToNow";
+
+    private final static int MAXTILES = 64;
+    private final static double MARGINDEG = 0.1;    // runway begin to airport reference point
+
+    private final static String loadsql =
+            "SELECT rwy_icaoid,rwy_number,rwy_truehdg,rwy_tdze,rwy_beglat,rwy_beglon," +
+            "rwy_endlat,rwy_endlon,rwy_ritraf,rwy_length,rwy_width FROM runways WHERE rwy_icaoid IN " +
+            "(SELECT apt_icaoid FROM airports WHERE apt_lat>=? AND apt_lat<? AND apt_lon>=? AND apt_lon<?)";
+
+    private final static ArrayList<Row> norows = new ArrayList<> (0);
+
+    // loaded tiles, keyed by database name and tile lat/lon
+    private final static LinkedHashMap<String,Tile> tiles =
+            new LinkedHashMap<String,Tile> (MAXTILES, 0.75F, true) {
+                @Override
+                protected boolean removeEldestEntry (Map.Entry<String,Tile> eldest)
+                {
+                    return size () > MAXTILES;
+                }
+            };
+
+    /**
+     * One row of the runways table.
+     */
+    public static class Row {
+        public String  icaoid;
+        public String  number;      // eg, "02L"
+        public int     truehdg;     // published, 0 if not given
+        public double  tdze;        // NaN if not given
+        public double  beglat;
+        public double  beglon;
+        public double  endlat;
+        public double  endlon;
+        public boolean ritraf;      // true=right; false=left
+        public int     lengthFt;
+        public int     widthFt;
+    }
+
+    // all runways for airports within a 1deg x 1deg tile
+    private static class Tile {
+        public ArrayList<Row> rows = new ArrayList<> ();
+        public HashMap<String,ArrayList<Row>> byicaoid = new HashMap<> ();
+    }
+
+    /**
+     * Get runways for the given airport.
+     * @param sqldb = waypoint database the airport came from
+     * @param icaoid = airport ICAO id
+     * @param lat/lon = airport reference point
+     * @return list of runways, caller must not modify
+     */
+    public static ArrayList<Row> GetAirportRunways (SQLiteDBs sqldb, String icaoid, double lat, double lon)
+    {
+        Tile tile = GetTile (sqldb, (int) Math.floor (lat), (int) Math.floor (Lib.NormalLon (lon)));
+        ArrayList<Row> rows = tile.byicaoid.get (icaoid);
+        return (rows == null) ? norows : rows;
+    }
+
+    /**
+     * Get runways whose beginning is within the given box.
+     * @param sqldb = waypoint database to read
+     * @param slat/nlat = latitude range
+     * @param wlon/elon = longitude range, elon may be less than wlon if crossing the date line
+     * @param found = where to put runways found
+     */
+    public static void GetRunwaysWithin (SQLiteDBs sqldb, double slat, double nlat,
+                                         double wlon, double elon, Collection<Row> found)
+    {
+        wlon = Lib.NormalLon (wlon);
+        double width = Lib.NormalLon (elon - wlon);
+        if (width < 0.0) width += 360.0;
+
+        int ilatmin = (int) Math.floor (Math.max (slat - MARGINDEG, -90.0));
+        int ilatmax = (int) Math.floor (Math.min (nlat + MARGINDEG, 89.0));
+        double coslat = Math.cos (Math.toRadians (Math.min (Math.max (Math.abs (slat), Math.abs (nlat)), 89.0)));
+        double lonmargin = MARGINDEG / coslat;
+        int ilonmin = (int) Math.floor (wlon - lonmargin);
+        int nlons = Math.min ((int) Math.floor (wlon + width + lonmargin) - ilonmin + 1, 360);
+
+        for (int ilat = ilatmin; ilat <= ilatmax; ilat ++) {
+            for (int i = 0; i < nlons; i ++) {
+                int ilon = ((ilonmin + i + 180) % 360 + 360) % 360 - 180;
+                Tile tile = GetTile (sqldb, ilat, ilon);
+                for (Row row : tile.rows) {
+                    if ((row.beglat < slat) || (row.beglat > nlat)) continue;
+                    double dlon = Lib.NormalLon (row.beglon - wlon);
+                    if (dlon < 0.0) dlon += 360.0;
+                    if (dlon <= width) found.add (row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget all loaded tiles.
+     * Called when a waypoint database is downloaded or deleted.
+     */
+    public static void Flush ()
+    {
+        synchronized (tiles) {
+            tiles.clear ();
+        }
+    }
+
+    // get tile from cache, loading it from database if not there
+    private static Tile GetTile (SQLiteDBs sqldb, int ilat, int ilon)
+    {
+        String key = sqldb.mydbname + " " + ilat + " " + ilon;
+        Tile tile;
+        synchronized (tiles) {
+            tile = tiles.get (key);
+        }
+        if (tile == null) {
+
+            // read outside the lock so other threads aren't held up
+            // worst case two threads both read the same tile
+            tile = new Tile ();
+            try {
+                Cursor result = sqldb.rawQuery (loadsql, new String[] {
+                        Integer.toString (ilat), Integer.toString (ilat + 1),
+                        Integer.toString (ilon), Integer.toString (ilon + 1) });
+                try {
+                    if (result.moveToFirst ()) do {
+                        Row row = new Row ();
+                        row.icaoid   = result.getString (0);
+                        row.number   = result.getString (1);
+                        row.truehdg  = result.isNull (2) ? 0 : result.getInt (2);
+                        row.tdze     = result.isNull (3) ? Double.NaN : result.getDouble (3);
+                        row.beglat   = result.getDouble (4);
+                        row.beglon   = result.getDouble (5);
+                        row.endlat   = result.getDouble (6);
+                        row.endlon   = result.getDouble (7);
+                        row.ritraf   = result.getString (8).equals ("Y");
+                        row.lengthFt = result.getInt (9);
+                        row.widthFt  = result.getInt (10);
+                        tile.rows.add (row);
+                        ArrayList<Row> rows = tile.byicaoid.get (row.icaoid);
+                        if (rows == null) {
+                            rows = new ArrayList<> (4);
+                            tile.byicaoid.put (row.icaoid, rows);
+                        }
+                        rows.add (row);
+                    } while (result.moveToNext ());
+                } finally {
+                    result.close ();
+                }
+            } catch (Exception e) {
+                // don't cache it so it gets retried
+                Log.e (TAG, "error reading runways from " + sqldb.mydbname, e);
+                return tile;
+            }
+
+            synchronized (tiles) {
+                tiles.put (key, tile);
+            }
+        }
+        return tile;
+    }
+}
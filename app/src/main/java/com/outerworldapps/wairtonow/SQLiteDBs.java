@@ -22,14 +22,21 @@ package com.outerworldapps.wairtonow;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
 import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.security.InvalidParameterException;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
 
 /**
  * Provide a thread-safe wrapper for SQLite databases.
@@ -39,9 +46,60 @@ public class SQLiteDBs {
 
     private final static String[] columns_name = new String[] { "name" };
 
+    private final static int SQLCACHESIZE = 64;     // sqlite's compiled statements per connection
+    private final static int MAXSTATEMENTS = 32;    // our compiled statements per connection
+    private final static int MAXSTATS = 1024;       // max different query strings to keep stats for
+    private final static int NBUCKETS = 12;         // histogram <1ms, <2ms, <4ms, ... <1024ms, >=1024ms
+    private final static int SLOWMS = 100;          // queries taking at least this long get logged
+    private final static int SLOWLOGSIZE = 32;      // number of slow queries to remember
+
+    // when dumping, replaces numbers in query text so queries differing only by value are merged
+    private final static Pattern numberPattern = Pattern.compile ("(?<![A-Za-z_0-9.])-?[0-9]+(\\.[0-9]*)?([Ee]-?[0-9]+)?");
+
+    // when dumping, replaces IN lists of any length so they are merged, eg, ROWID IN (#,#,#)
+    private final static Pattern inListPattern = Pattern.compile ("IN \\(\\s*[#?](\\s*,\\s*[#?])*\\s*\\)");
+
+    /**
+     * Timing for all queries with the same text.
+     */
+    private static class QueryStats {
+        public int count;
+        public int[] histogram = new int[NBUCKETS];
+        public long maxns;
+        public long totalns;
+    }
+
+    // set by the debug option to collect query timing, nothing is recorded otherwise
+    public static volatile boolean statsEnabled;
+
+    // stats for all databases, keyed by dbname and query text as given
+    private final static LinkedHashMap<String,QueryStats> queryStats = new LinkedHashMap<> ();
+
+    // most recent slow queries, circular
+    private final static String[] slowQueries = new String[SLOWLOGSIZE];
+    private static int slowQueryIndex;
+
     // one pointer per thread accessing this database
     private NNThreadLocal<SQLiteDatabase> tlsqldb = new NNThreadLocal<> ();
 
+    // compiled statements for each thread's connection, least recently used first
+    private NNThreadLocal<StatementCache> tlstmts = new NNThreadLocal<> ();
+
+    private static class StatementCache extends LinkedHashMap<String,SQLiteStatement> {
+        public StatementCache ()
+        {
+            super (MAXSTATEMENTS, 0.75F, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry (Map.Entry<String,SQLiteStatement> eldest)
+        {
+            if (size () <= MAXSTATEMENTS) return false;
+            eldest.getValue ().close ();
+            return true;
+        }
+    }
+
     // used by various threads to modify database
     private ReentrantLock dblock = new ReentrantLock ();
 
@@ -165,7 +223,9 @@ public class SQLiteDBs {
             if (db.tlsqldb.get () == null) {
                 Log.i (TAG, Thread.currentThread ().getName () + " opening " + dbname);
                 String dbpath = WairToNow.dbdir + "/" + dbname;
-                db.tlsqldb.set (SQLiteDatabase.openDatabase (dbpath, null, SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.NO_LOCALIZED_COLLATORS));
+                SQLiteDatabase sqldb = SQLiteDatabase.openDatabase (dbpath, null, SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+                sqldb.setMaxSqlCacheSize (SQLCACHESIZE);
+                db.tlsqldb.set (sqldb);
                 db.refcount ++;
             }
             return db;
@@ -187,7 +247,9 @@ public class SQLiteDBs {
             if (db.tlsqldb.get () == null) {
                 Log.i (TAG, Thread.currentThread ().getName () + " opening " + dbname);
                 String dbpath = WairToNow.dbdir + "/" + dbname;
-                db.tlsqldb.set (SQLiteDatabase.openDatabase (dbpath, null, SQLiteDatabase.NO_LOCALIZED_COLLATORS));
+                SQLiteDatabase sqldb = SQLiteDatabase.openDatabase (dbpath, null, SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+                sqldb.setMaxSqlCacheSize (SQLCACHESIZE);
+                db.tlsqldb.set (sqldb);
                 db.refcount ++;
             }
             return db;
@@ -329,23 +391,294 @@ public class SQLiteDBs {
         }
     }
 
+    // compiling the statement is done under dblock but the query runs when the cursor
+    // is first stepped, so TimedCursor records the stats then, outside of dblock
+    // cursors are only wrapped when stats are enabled
+
     public Cursor query (String table, String[] columns, String where, String[] whargs, String groupBy, String having, String orderBy, String limit)
     {
+        long started = System.nanoTime ();
+        Cursor result;
         dblock.lock ();
         try {
-            return tlsqldb.nnget ().query (table, columns, where, whargs, groupBy, having, orderBy, limit);
+            result = tlsqldb.nnget ().query (table, columns, where, whargs, groupBy, having, orderBy, limit);
         } finally {
             dblock.unlock ();
         }
+        if (!statsEnabled) return result;
+        return new TimedCursor (result, System.nanoTime () - started, table, where, whargs);
     }
 
     public Cursor query (boolean distinct, String table, String[] columns, String where, String[] whargs, String groupBy, String having, String orderBy, String limit)
     {
+        long started = System.nanoTime ();
+        Cursor result;
+        dblock.lock ();
+        try {
+            result = tlsqldb.nnget ().query (distinct, table, columns, where, whargs, groupBy, having, orderBy, limit);
+        } finally {
+            dblock.unlock ();
+        }
+        if (!statsEnabled) return result;
+        return new TimedCursor (result, System.nanoTime () - started, table, where, whargs);
+    }
+
+    /**
+     * Query with the values passed as ?s in sql and given in args.
+     * SQLite keeps the statement compiled for this thread's connection
+     * so it is re-used as long as the sql string is the same.
+     */
+    public Cursor rawQuery (String sql, String[] args)
+    {
+        long started = System.nanoTime ();
+        Cursor result;
+        dblock.lock ();
+        try {
+            result = tlsqldb.nnget ().rawQuery (sql, args);
+        } finally {
+            dblock.unlock ();
+        }
+        if (!statsEnabled) return result;
+        return new TimedCursor (result, System.nanoTime () - started, null, sql, args);
+    }
+
+    /**
+     * Records query stats the first time the cursor is stepped, as that is when
+     * SQLite actually runs the query.  If closed without stepping, just records
+     * the time it took to compile.
+     */
+    private class TimedCursor extends CursorWrapper {
+        private boolean recorded;
+        private long compilens;
+        private String table;
+        private String sql;
+        private String[] args;
+
+        public TimedCursor (Cursor cursor, long compilens, String table, String sql, String[] args)
+        {
+            super (cursor);
+            this.compilens = compilens;
+            this.table = table;
+            this.sql   = sql;
+            this.args  = args;
+        }
+
+        @Override
+        public int getCount ()
+        {
+            long started = starting ();
+            int n = super.getCount ();
+            finished (started);
+            return n;
+        }
+
+        @Override
+        public boolean move (int offset)
+        {
+            long started = starting ();
+            boolean ok = super.move (offset);
+            finished (started);
+            return ok;
+        }
+
+        @Override
+        public boolean moveToPosition (int position)
+        {
+            long started = starting ();
+            boolean ok = super.moveToPosition (position);
+            finished (started);
+            return ok;
+        }
+
+        @Override
+        public boolean moveToFirst ()
+        {
+            long started = starting ();
+            boolean ok = super.moveToFirst ();
+            finished (started);
+            return ok;
+        }
+
+        @Override
+        public boolean moveToLast ()
+        {
+            long started = starting ();
+            boolean ok = super.moveToLast ();
+            finished (started);
+            return ok;
+        }
+
+        @Override
+        public boolean moveToNext ()
+        {
+            long started = starting ();
+            boolean ok = super.moveToNext ();
+            finished (started);
+            return ok;
+        }
+
+        @Override
+        public void close ()
+        {
+            finished (starting ());
+            super.close ();
+        }
+
+        private long starting ()
+        {
+            return recorded ? 0 : System.nanoTime ();
+        }
+
+        private void finished (long started)
+        {
+            if (!recorded) {
+                recorded = true;
+                RecordStats (compilens + System.nanoTime () - started, table, sql, args);
+            }
+        }
+    }
+
+    /**
+     * Query returning a single number using a statement compiled once per thread.
+     * Throws SQLiteDoneException if the query returns no rows.
+     * @param sql = query with values passed as ?s
+     * @param args = values for the ?s
+     */
+    public long queryLong (String sql, String[] args)
+    {
+        long started = System.nanoTime ();
         dblock.lock ();
         try {
-            return tlsqldb.nnget ().query (distinct, table, columns, where, whargs, groupBy, having, orderBy, limit);
+            SQLiteStatement stmt = getStatement (sql);
+            stmt.clearBindings ();
+            if (args != null) stmt.bindAllArgsAsStrings (args);
+            return stmt.simpleQueryForLong ();
         } finally {
             dblock.unlock ();
+            RecordStats (System.nanoTime () - started, null, sql, args);
+        }
+    }
+
+    // get compiled statement for this thread's connection
+    private SQLiteStatement getStatement (String sql)
+    {
+        StatementCache stmts = tlstmts.get ();
+        if (stmts == null) {
+            stmts = new StatementCache ();
+            tlstmts.set (stmts);
+        }
+        SQLiteStatement stmt = stmts.get (sql);
+        if (stmt == null) {
+            stmt = tlsqldb.nnget ().compileStatement (sql);
+            stmts.put (sql, stmt);
+        }
+        return stmt;
+    }
+
+    // record how long a query took
+    //  input:
+    //   ns = how long the query took
+    //   table = table queried (or null if sql is a whole statement)
+    //   sql = where clause (or whole statement if table is null)
+    //   args = values for ?s in sql
+    private void RecordStats (long ns, String table, String sql, String[] args)
+    {
+        if (!statsEnabled) return;
+
+        String key = mydbname + ": " + ((table == null) ? sql : (table + " WHERE " + sql));
+
+        int bucket = 0;
+        for (long ms = ns / 1000000; (ms > 0) && (bucket < NBUCKETS - 1); ms /= 2) bucket ++;
+
+        synchronized (queryStats) {
+            if (ns >= SLOWMS * 1000000L) {
+                StringBuilder sb = new StringBuilder ();
+                sb.append (ns / 1000000);
+                sb.append ("ms ");
+                sb.append (Thread.currentThread ().getName ());
+                sb.append (' ');
+                sb.append (key);
+                if (args != null) {
+                    for (String arg : args) {
+                        sb.append (" [");
+                        sb.append (arg);
+                        sb.append (']');
+                    }
+                }
+                slowQueries[slowQueryIndex] = sb.toString ();
+                slowQueryIndex = (slowQueryIndex + 1) % SLOWLOGSIZE;
+            }
+
+            QueryStats qs = queryStats.get (key);
+            if (qs == null) {
+                if (queryStats.size () >= MAXSTATS) return;
+                qs = new QueryStats ();
+                queryStats.put (key, qs);
+            }
+            qs.count ++;
+            qs.histogram[bucket] ++;
+            qs.totalns += ns;
+            if (qs.maxns < ns) qs.maxns = ns;
+        }
+    }
+
+    /**
+     * Dump query timing stats and slow query log.
+     * Queries differing only by numbers and IN list lengths are merged.
+     */
+    public static void DumpStats (PrintWriter pw)
+    {
+        synchronized (queryStats) {
+            LinkedHashMap<String,QueryStats> merged = new LinkedHashMap<> ();
+            for (Map.Entry<String,QueryStats> entry : queryStats.entrySet ()) {
+                String key = numberPattern.matcher (entry.getKey ()).replaceAll ("#");
+                key = inListPattern.matcher (key).replaceAll ("IN (...)");
+                QueryStats qs = entry.getValue ();
+                QueryStats ms = merged.get (key);
+                if (ms == null) {
+                    ms = new QueryStats ();
+                    merged.put (key, ms);
+                }
+                ms.count += qs.count;
+                for (int i = 0; i < NBUCKETS; i ++) ms.histogram[i] += qs.histogram[i];
+                ms.totalns += qs.totalns;
+                if (ms.maxns < qs.maxns) ms.maxns = qs.maxns;
+            }
+
+            pw.println ("count totalms avgms maxms histogram(<1,<2,<4...ms) query");
+            for (Map.Entry<String,QueryStats> entry : merged.entrySet ()) {
+                QueryStats qs = entry.getValue ();
+                pw.print (qs.count);
+                pw.print (' ');
+                pw.print (qs.totalns / 1000000);
+                pw.print (' ');
+                pw.print (qs.totalns / 1000000 / qs.count);
+                pw.print (' ');
+                pw.print (qs.maxns / 1000000);
+                for (int i = 0; i < NBUCKETS; i ++) {
+                    pw.print ((i == 0) ? " " : ",");
+                    pw.print (qs.histogram[i]);
+                }
+                pw.print (' ');
+                pw.println (entry.getKey ());
+            }
+            pw.println ("slow queries:");
+            for (int i = 0; i < SLOWLOGSIZE; i ++) {
+                String slow = slowQueries[(slowQueryIndex+i)%SLOWLOGSIZE];
+                if (slow != null) pw.println (slow);
+            }
+        }
+    }
+
+    /**
+     * Dump query timing stats and slow query log to logcat.
+     */
+    public static void LogStats ()
+    {
+        StringWriter sw = new StringWriter ();
+        DumpStats (new PrintWriter (sw));
+        for (String line : sw.toString ().split ("\n")) {
+            Log.i (TAG, "SQLiteDBs: " + line);
         }
     }
 
@@ -397,6 +730,11 @@ public class SQLiteDBs {
                 SQLiteDatabase sqldb = tldb.get ();
                 if (sqldb != null) {
                     Log.i (TAG, Thread.currentThread ().getName () + " closing " + dbname);
+                    StatementCache stmts = db.tlstmts.get ();
+                    if (stmts != null) {
+                        for (SQLiteStatement stmt : stmts.values ()) stmt.close ();
+                        db.tlstmts.set (null);
+                    }
                     String path = sqldb.getPath ();
                     sqldb.close ();
                     tldb.set (null);
@@ -89,6 +89,7 @@ public class StateView extends View {
     private Paint courseTuPaint     = new Paint ();
     private Paint courseTvPaint     = new Paint ();
     private Paint trafficBGPaint    = new Paint ();
+    private Paint trafficCfPaint    = new Paint ();
     private Paint trafficTxPaint    = new Paint ();
     private Path centerCloudPath;
     private Path centerInfoPath     = new Path ();
@@ -164,6 +165,10 @@ public class StateView extends View {
         trafficTxPaint.setStyle (Paint.Style.FILL);
         trafficTxPaint.setStrokeWidth (2);
         trafficTxPaint.setTextSize (ts * 0.75F);
+        trafficCfPaint.setColor (Color.RED);
+        trafficCfPaint.setStyle (Paint.Style.FILL);
+        trafficCfPaint.setStrokeWidth (2);
+        trafficCfPaint.setTextSize (ts * 0.75F);
 
         courseInfoCrsStr = new char[] { 'd', 'd', 'd', '\u00B0' };
         courseInfoEteStr = new char[] { 'h', 'h', ':', 'm', 'm', ':', 's', 's' };
@@ -666,6 +671,7 @@ public class StateView extends View {
                 if (traffic.time < wairToNow.currentGPSTime - TRAFTIMELIMMS) {
                     it.remove ();
                     trafficRepo.trafficAddr.remove (traffic.address);
+                    trafficRepo.removedTraffic (traffic);
                     continue;
                 }
 
@@ -697,13 +703,17 @@ public class StateView extends View {
             Arrays.sort (trafficArray, 0, ntraf, trafficComparator);
 
             // draw traffic starting with farthest away so nearby don't get overdrawn by far away
+            // traffic predicted to come too close gets drawn in red
+            int[] conflictAddrs = trafficRepo.getConflicts ().addresses;
+
             float textSize = trafficTxPaint.getTextSize ();
             double canvasUp = Math.toDegrees (backing.GetCanvasTrueUpRads ());
             while (-- ntraf >= 0) {
                 Traffic traffic = trafficArray[ntraf];
+                boolean conflict = Arrays.binarySearch (conflictAddrs, traffic.address) >= 0;
 
                 for (int pass = 0; pass < 2; pass ++) {
-                    Paint paint = (pass == 0) ? trafficBGPaint : trafficTxPaint;
+                    Paint paint = (pass == 0) ? trafficBGPaint : conflict ? trafficCfPaint : trafficTxPaint;
 
                     double x = traffic.canpix.x;
                     double y = traffic.canpix.y;
@@ -311,7 +311,7 @@ public class StreetChart implements DisplayableChart {
                     dst.bottom = bmY + TILEHEIGHT;
                     dst.right  = bmX + TILEWIDTH;
                     can.drawBitmap (tbm, null, dst, null);
-                    tbm.recycle ();
+                    BitmapPool.free (tbm);
                 }
             }
         }
@@ -77,6 +77,14 @@ public class TopoZipFile implements ZipConstants {
         makeEntriesTable ();
     }
 
+    /**
+     * Latitude (degrees) of the topography in this ZIP file.
+     */
+    public int getIntLatDeg ()
+    {
+        return mIntLatDeg;
+    }
+
     /**
      * Closes this ZIP file. This method is idempotent.
      *
@@ -20,8 +20,8 @@
 
 package com.outerworldapps.wairtonow;
 
+import android.content.ComponentCallbacks2;
 import android.util.Log;
-import android.util.SparseArray;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -31,36 +31,147 @@ import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.DataFormatException;
 
 /**
  * Contains topography info (ground elevation at a given lat/lon).
+ *
+ * One-degree tiles are kept in a cache limited to cacheBudget bytes,
+ * so memory use stays bounded on long flights.  Tiles are evicted with
+ * the CLOCK algorithm, which lets cache hits run without any locking.
+ * Cache misses lock only the latitude row being loaded, so threads
+ * reading different rows never block each other.
+ *
+ * If a pre-inflated <ilatdeg>.raw file exists beside the <ilatdeg>.zip file,
+ * tiles are read directly from a memory-mapped copy of it instead of being
+ * inflated from the zip file into heap arrays.  Raw files are written in the
+ * background for latitude rows as they get used, and only the MAXRAWROWS most
+ * recently used ones are kept, so flash use stays bounded.  Raw file format:
+ *   int[360] = tile number for longitudes -180..179, -1 if no tile
+ *   short[n][3600] = tiles, indexed by minutelatitude*60+minutelongitude
+ * all little-endian, same as the entries in the zip file.
+ *
+ * Each loaded tile also gets a max-elevation pyramid, so the highest
+ * elevation in any box can be found without scanning every minute.
+ * Level L of the pyramid has cells 2^L minutes on a side holding the
+ * highest elevation in the cell, up to level 6 which covers the whole tile.
  */
 public class Topography {
     public final static String TAG = "WairToNow";
     public final static short INVALID_ELEV = (short) -0x8000;
+    public final static int DEFCACHEBUDGET = 2 * 1024 * 1024;
 
-    private final static SparseArray<short[]> loadedTopos = new SparseArray<> ();
+    private final static int NROWS = 180;           // latitudes -90..89
+    private final static int NCOLS = 360;           // longitudes -180..179
+    private final static int MAXIDLEZIPS = 4;       // max zip files kept open when not in use
+    private final static int TILEOVERHEAD = 64;     // approx bytes for TopoTile object itself
+    private final static int TILEBYTES = 3600 * 2;  // bytes for a tile's elevation array
+    private final static int RAWHDRBYTES = 360 * 4; // bytes for raw file header
+    private final static int MAXRAWROWS = 12;       // raw files kept, up to 2.6MB each
 
-    private static String topoZipName;
-    private static TopoZipFile topoZipFile;
+    // max-elevation pyramid, level 0 is the tile data itself
+    // level L has PYRDIMS[L] x PYRDIMS[L] cells starting at maxpyr[PYROFFS[L]]
+    private final static int PYRLEVELS = 7;
+    private final static int PYRSIZE = 1210;
+    private final static int[] PYRDIMS = { 60, 30, 15, 8, 4, 2, 1 };
+    private final static int[] PYROFFS = { -1, 0, 900, 1125, 1189, 1205, 1209 };
+
+    // one-degree tile in the cache
+    // linked in clock ring
+    private static class TopoTile {
+        public int index;           // (ilatdeg+90)*NCOLS+(ilondeg+180)
+        public short[] topos;       // tile read from zip file
+        public ShortBuffer mapped;  // tile mapped from raw file
+        public short[] maxpyr;      // max-elevation pyramid, null if no data
+        public boolean referenced;  // set on every hit, cleared by clock hand
+        public TopoTile clockNext;
+        public TopoTile clockPrev;
+
+        // mapped tiles use the system page cache, not the heap
+        public int size ()
+        {
+            int size = TILEOVERHEAD;
+            if (topos  != null) size += TILEBYTES;
+            if (maxpyr != null) size += PYRSIZE * 2;
+            return size;
+        }
+
+        // get pyramid cell at the given level
+        public short getPyr (int level, int row, int col)
+        {
+            if (level == 0) return get (row * 60 + col);
+            return maxpyr[PYROFFS[level]+row*PYRDIMS[level]+col];
+        }
+
+        // get elevation at the given index = minutelatitude*60+minutelongitude
+        public short get (int i)
+        {
+            if (topos  != null) return topos[i];
+            if (mapped != null) return mapped.get (i);
+            return INVALID_ELEV;
+        }
+    }
+
+    // one per latitude row
+    // locked while loading tiles for the row
+    private static class TopoRow {
+        public boolean rawChecked;  // checked for raw file
+        public int[] rawTileNums;   // tile number indexed by ilondeg+180, -1 if none
+        public ShortBuffer rawTiles;  // all tiles for the row, null if no raw file
+    }
+
+    // cached tiles, read without locking
+    private final static AtomicReferenceArray<TopoTile> loadedTopos = new AtomicReferenceArray<> (NROWS * NCOLS);
+    private final static TopoRow[] topoRows = MakeTopoRows ();
+
+    // zip files not currently being read from, least recently used first
+    private final static LinkedList<TopoZipFile> idleZips = new LinkedList<> ();
+
+    // cacheLock guards the clock ring and cache size
+    private final static Object cacheLock = new Object ();
+    private final static AtomicLong cacheHits = new AtomicLong ();
+    private final static AtomicLong cacheMisses = new AtomicLong ();
+    private final static AtomicLong cachePrefetches = new AtomicLong ();
+    private static int cacheBudget = DEFCACHEBUDGET;
+    private static int cacheBytes;
+    private static long cacheEvicts;
+    private static TopoTile clockHand;
+
+    private static TopoRow[] MakeTopoRows ()
+    {
+        TopoRow[] rows = new TopoRow[NROWS];
+        for (int i = 0; i < NROWS; i ++) rows[i] = new TopoRow ();
+        return rows;
+    }
 
     // if some .zip.temp files from before, try to download them again
+    // also trim raw files left over from when every row was pre-inflated
     public static void startup ()
     {
-        synchronized (loadedTopos) {
-            File[] files = new File (WairToNow.dbdir + "/datums/topo").listFiles ();
-            if (files != null) {
-                for (File file : files) {
-                    String name = file.getName ();
-                    if (name.endsWith (".zip.temp")) {
-                        try {
-                            int ilatdeg = Integer.parseInt (name.substring (0, name.length () - 9));
-                            TopoDownloadThread.enqueue (ilatdeg);
-                        } catch (NumberFormatException nfe) {
-                            Lib.Ignored (file.delete ());
-                        }
+        TrimRawFiles (WairToNow.dbdir + "/datums/topo");
+        File[] files = new File (WairToNow.dbdir + "/datums/topo").listFiles ();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName ();
+                if (name.endsWith (".zip.temp")) {
+                    try {
+                        int ilatdeg = Integer.parseInt (name.substring (0, name.length () - 9));
+                        TopoDownloadThread.enqueue (ilatdeg);
+                    } catch (NumberFormatException nfe) {
+                        Lib.Ignored (file.delete ());
                     }
                 }
             }
@@ -70,12 +181,43 @@ public class Topography {
     // close all files and release all used memory
     // let download thread keep running cuz we will probably need those files again soon
     public static void purge () {
-        synchronized (loadedTopos) {
-            loadedTopos.clear ();
-            if (topoZipFile != null) {
-                try { topoZipFile.close (); } catch (IOException ioe) { Lib.Ignored (); }
-                topoZipFile = null;
-                topoZipName = null;
+        for (int ilatdeg = -90; ilatdeg < 90; ilatdeg ++) {
+            removeLatitude (ilatdeg);
+        }
+    }
+
+    /**
+     * Set the maximum number of bytes the tile cache may hold.
+     * Trims the cache immediately if it is currently over the new budget.
+     */
+    public static void setCacheBudget (int bytes)
+    {
+        synchronized (cacheLock) {
+            cacheBudget = bytes;
+            trimCache (bytes);
+        }
+    }
+
+    public static int  getCacheBudget () { return cacheBudget; }
+    public static int  getCacheBytes  () { synchronized (cacheLock) { return cacheBytes;  } }
+    public static long getCacheEvicts () { synchronized (cacheLock) { return cacheEvicts; } }
+    public static long getCacheHits   () { return cacheHits.get ();   }
+    public static long getCacheMisses () { return cacheMisses.get (); }
+    public static long getCachePrefetches () { return cachePrefetches.get (); }
+
+    /**
+     * System is running low on memory, release some or all cached tiles.
+     * @param level = ComponentCallbacks2.TRIM_MEMORY_... level
+     */
+    public static void trimMemory (int level)
+    {
+        synchronized (cacheLock) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+                trimCache (0);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                trimCache (cacheBudget / 4);
+            } else {
+                trimCache (cacheBudget / 2);
             }
         }
     }
@@ -121,33 +263,528 @@ public class Topography {
 
         /*
          * See if corresponding file is already loaded in memory.
-         * If not, read it in and save on list.
+         * If not, read it in and save in cache.
+         */
+        TopoTile tile = getTile (ilatdeg, ilondeg, false);
+
+        /*
+         * Loaded in memory, return value.
+         * Returns INVALID_ELEV if file corrupt.
          */
-        int key = (ilatdeg << 16) + (ilondeg & 0xFFFF);
-        short[] topos;
-        synchronized (loadedTopos) {
-            int i = loadedTopos.indexOfKey (key);
-            if (i >= 0) {
-                topos = loadedTopos.valueAt (i);
+        return tile.get (ilatmin * 60 + ilonmin);
+    }
+
+    /**
+     * Make sure the tile containing the given lat/lon is in memory.
+     * Called by a background thread ahead of when the tile is needed,
+     * so does not count towards cache hits or misses.
+     * @return true iff tile was read in from file
+     */
+    public static boolean prefetch (double lat, double lon)
+    {
+        int ilatdeg = (int) Math.floor (lat);
+        int ilondeg = (int) Math.floor (lon);
+        if ((ilatdeg >= 90) || (ilatdeg < -90)) return false;
+        if (ilondeg < -180) ilondeg += 360;
+        if (ilondeg >= 180) ilondeg -= 360;
+        long before = cachePrefetches.get ();
+        getTile (ilatdeg, ilondeg, true);
+        return cachePrefetches.get () != before;
+    }
+
+    /**
+     * Get elevations for a rectangular grid of lat/lon minutes.
+     * Each one-degree tile is looked up just once for the whole grid.
+     *
+     * @param slatmin = southernmost latitude (minutes)
+     * @param wlonmin = westernmost longitude (minutes), may go past +180deg to wrap
+     * @param nlats   = number of latitude points
+     * @param nlons   = number of longitude points
+     * @param stepmin = minutes between adjacent points
+     * @param elevs   = where to put elevations (metres MSL, INVALID_ELEV if unknown)
+     *                  ...indexed by latindex*nlons+lonindex, south-to-north, west-to-east
+     */
+    public static void getElevGrid (int slatmin, int wlonmin, int nlats, int nlons, int stepmin, short[] elevs)
+    {
+        // longitude degrees spanned by the grid, relative to western edge degree
+        int wlondeg = (wlonmin + 60000) / 60 - 1000;
+        int ncols   = (wlonmin + (nlons - 1) * stepmin + 60000) / 60 - 1000 - wlondeg + 1;
+        TopoTile[] coltiles = new TopoTile[ncols];
+
+        int k = 0;
+        int lastlatdeg = Integer.MIN_VALUE;
+        for (int i = 0; i < nlats; i ++) {
+            int ilatmin = slatmin + i * stepmin;
+            int ilatdeg = (ilatmin + 60000) / 60 - 1000;
+            ilatmin -= ilatdeg * 60;
+
+            if ((ilatdeg >= 90) || (ilatdeg < -90)) {
+                for (int j = 0; j < nlons; j ++) elevs[k++] = INVALID_ELEV;
+                continue;
+            }
+
+            // new row of tiles, forget the ones from the previous row
+            if (lastlatdeg != ilatdeg) {
+                lastlatdeg = ilatdeg;
+                for (int c = 0; c < ncols; c ++) coltiles[c] = null;
+            }
+
+            for (int j = 0; j < nlons; j ++) {
+                int ilonmin = wlonmin + j * stepmin;
+                int ilondeg = (ilonmin + 60000) / 60 - 1000;
+                ilonmin -= ilondeg * 60;
+                int col = ilondeg - wlondeg;
+                TopoTile tile = coltiles[col];
+                if (tile == null) {
+                    while (ilondeg <  -180) ilondeg += 360;
+                    while (ilondeg >=  180) ilondeg -= 360;
+                    tile = coltiles[col] = getTile (ilatdeg, ilondeg, false);
+                }
+                elevs[k++] = tile.get (ilatmin * 60 + ilonmin);
+            }
+        }
+    }
+
+    /**
+     * Get elevations along a great-circle path.
+     * Each one-degree tile is looked up just once per visit by the path.
+     *
+     * @param lat1,lon1 = starting point (degrees)
+     * @param lat2,lon2 = ending point (degrees)
+     * @param npoints   = number of evenly spaced points including both ends
+     * @param elevs     = where to put elevations (metres MSL, INVALID_ELEV if unknown)
+     */
+    public static void getElevProfile (double lat1, double lon1, double lat2, double lon2, int npoints, short[] elevs)
+    {
+        double tc = Lib.LatLonTC (lat1, lon1, lat2, lon2);
+        double nm = Lib.LatLonDist (lat1, lon1, lat2, lon2);
+
+        TopoTile tile = null;
+        int lastlatdeg = Integer.MIN_VALUE;
+        int lastlondeg = Integer.MIN_VALUE;
+        for (int i = 0; i < npoints; i ++) {
+            double dist = (npoints > 1) ? nm * i / (npoints - 1) : 0.0;
+            double lat  = Lib.LatHdgDist2Lat (lat1, tc, dist);
+            double lon  = Lib.LatLonHdgDist2Lon (lat1, lon1, tc, dist);
+
+            int ilatmin = (int) Math.round (lat * 60.0);
+            int ilonmin = (int) Math.round (lon * 60.0);
+            int ilatdeg = (ilatmin + 60000) / 60 - 1000;
+            int ilondeg = (ilonmin + 60000) / 60 - 1000;
+            ilatmin -= ilatdeg * 60;
+            ilonmin -= ilondeg * 60;
+
+            if ((ilatdeg >= 90) || (ilatdeg < -90)) {
+                elevs[i] = INVALID_ELEV;
+                continue;
+            }
+            if (ilondeg < -180) ilondeg += 360;
+            if (ilondeg >= 180) ilondeg -= 360;
+
+            if ((lastlatdeg != ilatdeg) || (lastlondeg != ilondeg)) {
+                lastlatdeg = ilatdeg;
+                lastlondeg = ilondeg;
+                tile = getTile (ilatdeg, ilondeg, false);
+            }
+            elevs[i] = tile.get (ilatmin * 60 + ilonmin);
+        }
+    }
+
+    /**
+     * Get highest elevation within a box of lat/lon minutes.
+     *
+     * @param slatmin  = southernmost latitude (minutes)
+     * @param wlonmin  = westernmost longitude (minutes), may go past +180deg to wrap
+     * @param nlatmins = number of latitude minutes in box
+     * @param nlonmins = number of longitude minutes in box
+     * @return highest elevation (metres MSL), INVALID_ELEV if none known
+     */
+    public static short getHighestElev (int slatmin, int wlonmin, int nlatmins, int nlonmins)
+    {
+        int nlatmin = slatmin + nlatmins;
+        int elonmin = wlonmin + nlonmins;
+        short highest = INVALID_ELEV;
+
+        // step through the tiles overlapping the box
+        for (int ilatdeg = (slatmin + 60000) / 60 - 1000; ilatdeg * 60 < nlatmin; ilatdeg ++) {
+            if ((ilatdeg < -90) || (ilatdeg >= 90)) continue;
+            int s = Math.max (slatmin - ilatdeg * 60, 0);
+            int n = Math.min (nlatmin - ilatdeg * 60, 60);
+            for (int jlondeg = (wlonmin + 60000) / 60 - 1000; jlondeg * 60 < elonmin; jlondeg ++) {
+                int w = Math.max (wlonmin - jlondeg * 60, 0);
+                int e = Math.min (elonmin - jlondeg * 60, 60);
+                int ilondeg = jlondeg;
+                while (ilondeg <  -180) ilondeg += 360;
+                while (ilondeg >=  180) ilondeg -= 360;
+
+                // search that part of the tile's pyramid
+                TopoTile tile = getTile (ilatdeg, ilondeg, false);
+                if (tile.maxpyr != null) {
+                    short elev = PyrMax (tile, PYRLEVELS - 1, 0, 0, s, n, w, e);
+                    if (highest < elev) highest = elev;
+                }
+            }
+        }
+        return highest;
+    }
+
+    /**
+     * Get highest elevation in the part of a pyramid cell that overlaps a box.
+     * @param level,row,col = pyramid cell
+     * @param s,n,w,e = box in minutes within tile, s,w inclusive; n,e exclusive
+     */
+    private static short PyrMax (TopoTile tile, int level, int row, int col, int s, int n, int w, int e)
+    {
+        int cs = row << level;
+        int cw = col << level;
+        int cn = Math.min ((row + 1) << level, 60);
+        int ce = Math.min ((col + 1) << level, 60);
+
+        // cell completely outside box
+        if ((cn <= s) || (cs >= n) || (ce <= w) || (cw >= e)) return INVALID_ELEV;
+
+        // cell completely inside box (level 0 cells always are if not outside)
+        if ((cs >= s) && (cn <= n) && (cw >= w) && (ce <= e)) return tile.getPyr (level, row, col);
+
+        // partial overlap, check the four sub-cells
+        int subdim = PYRDIMS[level-1];
+        short highest = INVALID_ELEV;
+        for (int r = row * 2; (r <= row * 2 + 1) && (r < subdim); r ++) {
+            for (int c = col * 2; (c <= col * 2 + 1) && (c < subdim); c ++) {
+                short elev = PyrMax (tile, level - 1, r, c, s, n, w, e);
+                if (highest < elev) highest = elev;
+            }
+        }
+        return highest;
+    }
+
+    /**
+     * Build max-elevation pyramid for a newly read tile.
+     */
+    private static void MakeMaxPyramid (TopoTile tile)
+    {
+        tile.maxpyr = new short[PYRSIZE];
+        for (int level = 1; level < PYRLEVELS; level ++) {
+            int dim    = PYRDIMS[level];
+            int subdim = PYRDIMS[level-1];
+            for (int row = 0; row < dim; row ++) {
+                for (int col = 0; col < dim; col ++) {
+                    short highest = INVALID_ELEV;
+                    for (int r = row * 2; (r <= row * 2 + 1) && (r < subdim); r ++) {
+                        for (int c = col * 2; (c <= col * 2 + 1) && (c < subdim); c ++) {
+                            short elev = tile.getPyr (level - 1, r, c);
+                            if (highest < elev) highest = elev;
+                        }
+                    }
+                    tile.maxpyr[PYROFFS[level]+row*dim+col] = highest;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get tile from cache, reading it from file if not there.
+     * @param ilatdeg = latitude degree -90..89
+     * @param ilondeg = longitude degree -180..179
+     * @param prefetch = false: foreground request, counts as cache hit or miss
+     *                    true: background read-ahead, counts as prefetch if read from file
+     */
+    private static TopoTile getTile (int ilatdeg, int ilondeg, boolean prefetch)
+    {
+        // fast path, no locking
+        int index = (ilatdeg + 90) * NCOLS + ilondeg + 180;
+        TopoTile tile = loadedTopos.get (index);
+        if (tile != null) {
+            if (! prefetch) cacheHits.incrementAndGet ();
+            tile.referenced = true;
+            return tile;
+        }
+
+        // slow path, lock just the one latitude row
+        TopoRow row = topoRows[ilatdeg+90];
+        synchronized (row) {
+
+            // maybe another thread read it in while we were waiting
+            tile = loadedTopos.get (index);
+            if (tile != null) {
+                if (! prefetch) cacheHits.incrementAndGet ();
+                tile.referenced = true;
+                return tile;
+            }
+
+            if (prefetch) cachePrefetches.incrementAndGet ();
+            else cacheMisses.incrementAndGet ();
+            tile = new TopoTile ();
+            tile.index = index;
+            tile.referenced = true;
+            ReadTile (row, tile, ilatdeg, ilondeg);
+            if ((tile.topos != null) || (tile.mapped != null)) {
+                MakeMaxPyramid (tile);
+            }
+
+            synchronized (cacheLock) {
+                loadedTopos.set (index, tile);
+                clockInsert (tile);
+                cacheBytes += tile.size ();
+                trimCache (cacheBudget);
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * Evict tiles until cache holds no more than the given bytes.
+     * Tiles referenced since the clock hand last passed get a second chance,
+     * unless everything is being released.
+     * Caller must hold cacheLock.
+     */
+    private static void trimCache (int keepbytes)
+    {
+        while ((cacheBytes > keepbytes) && (clockHand != null)) {
+            TopoTile tile = clockHand;
+            if (tile.referenced && (keepbytes > 0)) {
+                tile.referenced = false;
+                clockHand = tile.clockNext;
             } else {
-                topos = ReadFile (ilatdeg, ilondeg);
-                loadedTopos.put (key, topos);
+                clockRemove (tile);
+                loadedTopos.compareAndSet (tile.index, tile, null);
+                cacheBytes -= tile.size ();
+                cacheEvicts ++;
             }
         }
+    }
 
-        /*
-         * File corrupt.
-         */
-        if (topos == null) return INVALID_ELEV;
+    /**
+     * Remove all tiles for the given latitude from the cache
+     * and close any files open for the latitude.
+     */
+    private static void removeLatitude (int ilatdeg)
+    {
+        TopoRow row = topoRows[ilatdeg+90];
+        synchronized (row) {
+            row.rawChecked  = false;
+            row.rawTileNums = null;
+            row.rawTiles    = null;
+            CloseIdleZips (ilatdeg);
+            synchronized (cacheLock) {
+                int index = (ilatdeg + 90) * NCOLS;
+                for (int i = 0; i < NCOLS; i ++) {
+                    TopoTile tile = loadedTopos.getAndSet (index + i, null);
+                    if (tile != null) {
+                        clockRemove (tile);
+                        cacheBytes -= tile.size ();
+                    }
+                }
+            }
+        }
+    }
 
-        /*
-         * Loaded in memory, return value.
-         */
-        return topos[ilatmin*60+ilonmin];
+    // insert tile just behind the clock hand so it is the last one looked at
+    // caller must hold cacheLock
+    private static void clockInsert (TopoTile tile)
+    {
+        if (clockHand == null) {
+            tile.clockNext = tile;
+            tile.clockPrev = tile;
+            clockHand = tile;
+        } else {
+            tile.clockNext = clockHand;
+            tile.clockPrev = clockHand.clockPrev;
+            clockHand.clockPrev.clockNext = tile;
+            clockHand.clockPrev = tile;
+        }
+    }
+
+    // caller must hold cacheLock
+    private static void clockRemove (TopoTile tile)
+    {
+        if (tile.clockNext == tile) {
+            clockHand = null;
+        } else {
+            tile.clockPrev.clockNext = tile.clockNext;
+            tile.clockNext.clockPrev = tile.clockPrev;
+            if (clockHand == tile) clockHand = tile.clockNext;
+        }
+        tile.clockNext = null;
+        tile.clockPrev = null;
+    }
+
+    /**
+     * Read topo data for a tile, from raw file if present, else from zip file.
+     * Caller must hold row lock.
+     */
+    private static void ReadTile (TopoRow row, TopoTile tile, int ilatdeg, int ilondeg)
+    {
+        if (! row.rawChecked) {
+            MapRawRow (row, ilatdeg);
+            row.rawChecked = true;
+        }
+        if (row.rawTiles != null) {
+            int tilenum = row.rawTileNums[ilondeg+180];
+            if (tilenum >= 0) {
+                ShortBuffer sb = row.rawTiles.duplicate ();
+                sb.position (tilenum * 3600);
+                sb.limit (tilenum * 3600 + 3600);
+                tile.mapped = sb.slice ();
+            }
+        } else {
+            tile.topos = ReadFile (ilatdeg, ilondeg);
+        }
+    }
+
+    /**
+     * Map the topo/ilatdeg.raw file into memory.
+     * Caller must hold row lock.
+     * Leaves row.rawTiles null if there is no valid raw file,
+     * and queues one to be written if the zip file is present.
+     */
+    private static void MapRawRow (TopoRow row, int ilatdeg)
+    {
+        String name = WairToNow.dbdir + "/datums/topo/" + ilatdeg + ".raw";
+        File file = new File (name);
+        if (! file.exists ()) {
+            if (new File (WairToNow.dbdir + "/datums/topo/" + ilatdeg + ".zip").length () > 0) {
+                RawWriterThread.enqueue (ilatdeg);
+            }
+        } else {
+
+            // mark it most recently used so TrimRawFiles() keeps it
+            Lib.Ignored (file.setLastModified (System.currentTimeMillis ()));
+            try {
+                RandomAccessFile raf = new RandomAccessFile (file, "r");
+                try {
+                    FileChannel fc = raf.getChannel ();
+                    MappedByteBuffer mbb = fc.map (FileChannel.MapMode.READ_ONLY, 0, fc.size ());
+                    mbb.order (ByteOrder.LITTLE_ENDIAN);
+                    int[] tilenums = new int[360];
+                    mbb.asIntBuffer ().get (tilenums);
+                    mbb.position (RAWHDRBYTES);
+                    ShortBuffer tiles = mbb.slice ().order (ByteOrder.LITTLE_ENDIAN).asShortBuffer ();
+                    for (int tilenum : tilenums) {
+                        if (tilenum * 3600 + 3600 > tiles.capacity ()) {
+                            throw new IOException ("tile number " + tilenum + " out of range");
+                        }
+                    }
+                    row.rawTileNums = tilenums;
+                    row.rawTiles = tiles;
+                    Log.i (TAG, "mapped " + name);
+                } finally {
+                    raf.close ();
+                }
+            } catch (Exception e) {
+                Log.e (TAG, "error mapping " + name, e);
+                Lib.Ignored (file.delete ());
+            }
+        }
+    }
+
+    /**
+     * Forget the raw file mapping for a latitude row so the next ReadTile() checks again.
+     * Tiles already loaded from an old mapping remain valid.
+     */
+    private static void forgetRawRow (int ilatdeg)
+    {
+        TopoRow row = topoRows[ilatdeg+90];
+        synchronized (row) {
+            row.rawChecked  = false;
+            row.rawTileNums = null;
+            row.rawTiles    = null;
+        }
+    }
+
+    /**
+     * Delete least recently used raw files so at most MAXRAWROWS remain.
+     * @param dirname = directory containing the raw files
+     */
+    private static void TrimRawFiles (String dirname)
+    {
+        File[] files = new File (dirname).listFiles ();
+        if (files == null) return;
+        ArrayList<File> raws = new ArrayList<> ();
+        for (File file : files) {
+            if (file.getName ().endsWith (".raw")) raws.add (file);
+        }
+        if (raws.size () <= MAXRAWROWS) return;
+
+        Collections.sort (raws, new Comparator<File> () {
+            @Override
+            public int compare (File a, File b)
+            {
+                long am = a.lastModified ();
+                long bm = b.lastModified ();
+                return (am < bm) ? -1 : (am > bm) ? 1 : 0;
+            }
+        });
+        for (int i = raws.size () - MAXRAWROWS; -- i >= 0;) {
+            File file = raws.get (i);
+            String name = file.getName ();
+            Log.i (TAG, "deleting " + file.getPath ());
+            Lib.Ignored (file.delete ());
+            try {
+                forgetRawRow (Integer.parseInt (name.substring (0, name.length () - 4)));
+            } catch (NumberFormatException nfe) {
+                Lib.Ignored ();
+            }
+        }
+    }
+
+    /**
+     * Write pre-inflated raw file from a topo zip file.
+     * @param dirname = directory containing <ilatdeg>.zip, where <ilatdeg>.raw is written
+     * @param ilatdeg = latitude row of the zip file
+     */
+    private static void WriteRawFile (String dirname, int ilatdeg)
+            throws IOException
+    {
+        String zipname = dirname + "/" + ilatdeg + ".zip";
+        String rawname = dirname + "/" + ilatdeg + ".raw";
+        if (new File (zipname).length () == 0) return;
+
+        RandomAccessFile raf = new RandomAccessFile (zipname, "r");
+        try {
+            TopoZipFile tzf = new TopoZipFile (raf, ilatdeg);
+            try {
+                // inflate all tiles present in the zip file
+                byte[][] tiles = new byte[360][];
+                int[] tilenums = new int[360];
+                int ntiles = 0;
+                for (int ilondeg = -180; ilondeg < 180; ilondeg ++) {
+                    byte[] bytes = tzf.getBytes (ilondeg);
+                    if ((bytes != null) && (bytes.length == TILEBYTES)) {
+                        tiles[ntiles] = bytes;
+                        tilenums[ilondeg+180] = ntiles ++;
+                    } else {
+                        tilenums[ilondeg+180] = -1;
+                    }
+                }
+
+                // write header followed by the tiles
+                ByteBuffer hdr = ByteBuffer.allocate (RAWHDRBYTES);
+                hdr.order (ByteOrder.LITTLE_ENDIAN);
+                hdr.asIntBuffer ().put (tilenums);
+                FileOutputStream fos = new FileOutputStream (rawname + ".tmp");
+                try {
+                    fos.write (hdr.array ());
+                    for (int i = 0; i < ntiles; i ++) {
+                        fos.write (tiles[i]);
+                    }
+                } finally {
+                    fos.close ();
+                }
+                Lib.RenameFile (rawname + ".tmp", rawname);
+            } catch (DataFormatException dfe) {
+                throw new IOException ("error inflating " + zipname, dfe);
+            } finally {
+                tzf.close ();
+            }
+        } finally {
+            raf.close ();
+        }
     }
 
     /**
      * Read topo data from Zip file.
+     * Caller must hold row lock.
      * @param ilatdeg = latitude degree of topo data
      * @param ilondeg = longitude degree of topo data
      * @return array of shorts giving elevation (metres MSL)
@@ -156,21 +793,11 @@ public class Topography {
     private static short[] ReadFile (int ilatdeg, int ilondeg)
     {
         /*
-         * Open corresponding topo/ilatdeg.zip file if not already.
+         * Use already open topo/ilatdeg.zip file if there is one.
          */
-        String name = WairToNow.dbdir + "/datums/topo/" + ilatdeg + ".zip";
-        if (! name.equals (topoZipName)) {
-
-            // close currently open zip file
-            if (topoZipFile != null) {
-                try {
-                    topoZipFile.close ();
-                } catch (IOException ioe) {
-                    Lib.Ignored ();
-                }
-                topoZipFile = null;
-                topoZipName = null;
-            }
+        TopoZipFile topoZipFile = CheckOutZip (ilatdeg);
+        if (topoZipFile == null) {
+            String name = WairToNow.dbdir + "/datums/topo/" + ilatdeg + ".zip";
 
             // non-existant file means topo not downloaded
             // so just return INVALID_ELEV
@@ -188,11 +815,8 @@ public class Topography {
             try {
                 RandomAccessFile raf = new RandomAccessFile (name, "r");
                 topoZipFile = new TopoZipFile (raf, ilatdeg);
-                topoZipName = name;
             } catch (IOException ioe) {
                 Log.e (TAG, "error opening " + name, ioe);
-                topoZipFile = null;
-                topoZipName = null;
                 return null;
             }
             Log.i (TAG, "opened " + name);
@@ -219,6 +843,106 @@ public class Topography {
         } catch (Exception e) {
             Log.e (TAG, "error reading topo " + ilatdeg + "/" + ilondeg, e);
             return null;
+        } finally {
+            CheckInZip (topoZipFile);
+        }
+    }
+
+    /**
+     * Get an open zip file for the given latitude from the idle pool.
+     * @return null if none open
+     */
+    private static TopoZipFile CheckOutZip (int ilatdeg)
+    {
+        synchronized (idleZips) {
+            for (Iterator<TopoZipFile> it = idleZips.iterator (); it.hasNext ();) {
+                TopoZipFile tzf = it.next ();
+                if (tzf.getIntLatDeg () == ilatdeg) {
+                    it.remove ();
+                    return tzf;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Put zip file in idle pool for re-use.
+     * Close least recently used ones if there are too many.
+     */
+    private static void CheckInZip (TopoZipFile topoZipFile)
+    {
+        synchronized (idleZips) {
+            idleZips.addLast (topoZipFile);
+            while (idleZips.size () > MAXIDLEZIPS) {
+                try { idleZips.removeFirst ().close (); } catch (IOException ioe) { Lib.Ignored (); }
+            }
+        }
+    }
+
+    /**
+     * Close all idle zip files for the given latitude.
+     */
+    private static void CloseIdleZips (int ilatdeg)
+    {
+        synchronized (idleZips) {
+            for (Iterator<TopoZipFile> it = idleZips.iterator (); it.hasNext ();) {
+                TopoZipFile tzf = it.next ();
+                if (tzf.getIntLatDeg () == ilatdeg) {
+                    it.remove ();
+                    try { tzf.close (); } catch (IOException ioe) { Lib.Ignored (); }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes pre-inflated raw files in the background for latitude rows as they get used.
+     */
+    private static class RawWriterThread extends Thread {
+        private final static HashSet<Integer> ilatdegs = new HashSet<> ();
+        private static RawWriterThread thread;
+
+        public static void enqueue (int ilatdeg)
+        {
+            synchronized (ilatdegs) {
+                ilatdegs.add (ilatdeg);
+                if (thread == null) {
+                    thread = new RawWriterThread ();
+                    thread.start ();
+                }
+            }
+        }
+
+        @Override
+        public void run ()
+        {
+            setName ("TopoRawWriter");
+            setPriority (MIN_PRIORITY);
+
+            while (true) {
+                int ilatdeg;
+                synchronized (ilatdegs) {
+                    Iterator<Integer> it = ilatdegs.iterator ();
+                    if (! it.hasNext ()) {
+                        thread = null;
+                        break;
+                    }
+                    ilatdeg = it.next ();
+                    it.remove ();
+                }
+
+                try {
+                    String dirname = WairToNow.dbdir + "/datums/topo";
+                    WriteRawFile (dirname, ilatdeg);
+                    TrimRawFiles (dirname);
+
+                    // have next ReadTile() for the row map the new file
+                    forgetRawRow (ilatdeg);
+                } catch (Exception e) {
+                    Log.w (TAG, "exception writing topography raw file", e);
+                }
+            }
         }
     }
 
@@ -228,10 +952,12 @@ public class Topography {
 
         public static void enqueue (int ilatdeg)
         {
-            ilatdegs.add (ilatdeg);
-            if (thread == null) {
-                thread = new TopoDownloadThread ();
-                thread.start ();
+            synchronized (ilatdegs) {
+                ilatdegs.add (ilatdeg);
+                if (thread == null) {
+                    thread = new TopoDownloadThread ();
+                    thread.start ();
+                }
             }
         }
 
@@ -245,7 +971,7 @@ public class Topography {
                 // check for an empty topo zip that was needed
                 // exit thread if none queued
                 int ilatdeg;
-                synchronized (loadedTopos) {
+                synchronized (ilatdegs) {
                     Iterator<Integer> it = ilatdegs.iterator ();
                     if (! it.hasNext ()) {
                         thread = null;
@@ -288,22 +1014,21 @@ public class Topography {
                         // download complete
                         Lib.RenameFile (tempname, permname);
                         Log.i (TAG, "downloaded " + permname);
+
+                        // any raw file from before is stale
+                        // a new one gets written when the row is next used
+                        Lib.Ignored (new File (WairToNow.dbdir + "/datums/topo/" + ilatdeg + ".raw").delete ());
                     }
 
                     // tell main to read from newly downloaded zip
-                    synchronized (loadedTopos) {
-                        for (int i = loadedTopos.size (); -- i >= 0;) {
-                            int key = loadedTopos.keyAt (i);
-                            if (key >> 16 == ilatdeg) loadedTopos.removeAt (i);
-                        }
-                    }
+                    removeLatitude (ilatdeg);
                 } catch (Exception e) {
 
                     // probably no internet
                     Log.w (TAG, "exception downloading topography zip", e);
 
                     // try again in a minute
-                    synchronized (loadedTopos) {
+                    synchronized (ilatdegs) {
                         ilatdegs.add (ilatdeg);
                     }
                     try { Thread.sleep (65432); } catch (InterruptedException ignored) { }
@@ -0,0 +1,77 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+
+
+package com.outerworldapps.wairtonow;
+
+/**
+ * Figures out where the chart canvas will be a little while from now
+ * when the screen is following the aircraft in flight, so the charts
+ * can start loading tiles before they scroll onto the screen.
+ */
+public class TrackAhead {
+    public final static int SECONDS = 60;  // how far ahead to look
+    public final static int STEPS   = 3;   // number of canvas positions checked along the way
+
+    public double dx, dy;   // canvas pixels canvas will have moved at end of SECONDS
+
+    private PointD nowpix  = new PointD ();
+    private PointD thenpix = new PointD ();
+
+    /**
+     * Compute how far the canvas will move in the next SECONDS.
+     * @param wtn = app with current GPS position, track and groundspeed
+     * @param pmap = mapping of lat/lons to canvas being drawn
+     * @return false: not moving or canvas isn't following the aircraft, don't prefetch
+     */
+    public boolean compute (WairToNow wtn, PixelMapper pmap)
+    {
+        ChartView chartView = wtn.chartView;
+        if ((chartView == null) || (pmap != chartView.pmap) || chartView.holdPosition) return false;
+        if (wtn.currentGPSSpd <= WairToNow.gpsMinSpeedMPS) return false;
+
+        double lat  = wtn.currentGPSLat;
+        double lon  = wtn.currentGPSLon;
+        double hdg  = wtn.currentGPSHdg;
+        double dist = wtn.currentGPSSpd * Lib.KtPerMPS * SECONDS / 3600.0;
+        pmap.LatLon2CanPixAprox (lat, lon, nowpix);
+        pmap.LatLon2CanPixAprox (Lib.LatHdgDist2Lat (lat, hdg, dist),
+                Lib.LatLonHdgDist2Lon (lat, lon, hdg, dist), thenpix);
+        dx = thenpix.x - nowpix.x;
+        dy = thenpix.y - nowpix.y;
+
+        // hardly moving on screen (eg, zoomed way out), on-screen tiles cover it
+        return Math.hypot (dx, dy) > Math.hypot (pmap.canvasWidth, pmap.canvasHeight) / 16.0;
+    }
+
+    /**
+     * Canvas offset at the given step along the track.
+     * @param step = 1..STEPS
+     */
+    public double stepX (int step)
+    {
+        return dx * step / STEPS;
+    }
+    public double stepY (int step)
+    {
+        return dy * step / STEPS;
+    }
+}
@@ -51,6 +51,16 @@ public class Traffic {
     public double distaway;
     public PointD canpix;
 
+    // maintained by TrafficRepo
+    public boolean conflict;     // predicted to come too close to ownship
+    public boolean gridLinked;   // linked into a trafficGrid cell
+    public double cpaSecs;       // seconds to closest point of approach
+    public double cpaDistNM;     // horizontal distance at closest approach
+    public double cpaVertFt;     // altitude above ownship at closest approach (or NaN)
+    public int gridKey;          // trafficGrid cell key
+    public Traffic gridNext;     // next in same trafficGrid cell
+    public Traffic gridPrev;     // previous in same trafficGrid cell
+
     private double lastDistNM = -1.0;
     private int lastHdgIdx = -1;
     private String[] text;
@@ -22,17 +22,65 @@ package com.outerworldapps.wairtonow;
 
 import android.util.SparseArray;
 
+import java.util.Arrays;
+import java.util.Comparator;
+
 /**
  * Holds the current Traffic from all sources.
+ * Also keeps the traffic in a lat/lon grid so closest point of approach
+ * to ownship can be computed for just the traffic that is nearby.
  */
 public class TrafficRepo {
     private final static int MAXIMAGES = 1000;
 
+    private final static double GRIDNM       = 2.0;     // size of grid cells
+    private final static double LOOKAHEADSEC = 60.0;    // how far ahead to look for conflicts
+    private final static double MAXTRAFKTS   = 600.0;   // fastest traffic we expect to see
+    private final static double CPAHORIZNM   = 0.5;     // closer than this horizontally
+    private final static double CPAVERTFT    = 500.0;   // ...and this vertically is a conflict
+
+    /**
+     * Traffic predicted to come too close to ownship.
+     */
+    public static class Conflict {
+        public int address;         // <26:24>=addr type; <23:00>=ICAO address
+        public String callsign;     // call sign (or null)
+        public double cpaSecs;      // seconds from ownship position time to closest approach
+        public double cpaDistNM;    // horizontal distance at closest approach
+        public double cpaVertFt;    // traffic altitude above ownship at closest approach (or NaN)
+    }
+
+    /**
+     * Snapshot of conflicts published for the renderer.
+     * Never modified once published so it can be read without locking the repo.
+     */
+    public static class Conflicts {
+        public int[] addresses;     // ascending, for binarySearch()
+        public Conflict[] byTime;   // ascending time to closest approach
+    }
+
     public  volatile boolean amEmpty;
     public  NNTreeMap<Integer,Traffic> trafficAges = new NNTreeMap<> ();
     public  SparseArray<Traffic> trafficAddr = new SparseArray<> ();
 
+    private double ownAltFt;
+    private double ownClimbFPM;
+    private double ownKts;
+    private double ownLat;
+    private double ownLon;
+    private double ownVX;           // nm per second east
+    private double ownVY;           // nm per second north
     private int lastSeqno = Integer.MIN_VALUE;
+    private long ownTime;
+    private SparseArray<Traffic> conflictAddrs = new SparseArray<> ();
+    private SparseArray<Traffic> trafficGrid = new SparseArray<> ();
+    private volatile Conflicts conflicts = new Conflicts ();
+
+    public TrafficRepo ()
+    {
+        conflicts.addresses = new int[0];
+        conflicts.byTime = new Conflict[0];
+    }
 
     /**
      * Insert new traffic into the repo.
@@ -52,16 +100,238 @@ public class TrafficRepo {
         }
 
         // delete oldest traffic overall to make room if we have too many
+        boolean changed = false;
         while (trafficAges.size () >= MAXIMAGES) {
             int oldseqno = trafficAges.keySet ().iterator ().next ();
             oldtr = trafficAges.nnremove (oldseqno);
             trafficAddr.remove (oldtr.address);
+            changed |= unlinkTraffic (oldtr);
         }
 
         // insert on lists
         trafficAddr.put (newtr.address, newtr);
         trafficAges.put (newtr.seqno, newtr);
+        linkTraffic (newtr);
+
+        // see if it is in conflict with ownship
+        changed |= evaluate (newtr);
+        if (changed) publishConflicts ();
 
         amEmpty = false;
     }
+
+    /**
+     * Traffic was removed from trafficAges and trafficAddr by caller.
+     * ** CALLER MUST HAVE the repo LOCKED **
+     */
+    public void removedTraffic (Traffic oldtr)
+    {
+        if (unlinkTraffic (oldtr)) publishConflicts ();
+    }
+
+    /**
+     * Ownship position was updated, re-check nearby traffic for conflicts.
+     * ** CALLER MUST HAVE the repo LOCKED **
+     * @param speed = metres per second
+     * @param altitude = metres MSL
+     * @param heading = degrees true
+     * @param time = ms since 1970-01-01 00:00 UTC
+     */
+    public void setOwnship (double speed, double altitude, double heading,
+                            double latitude, double longitude, long time)
+    {
+        double altft = altitude * Lib.FtPerM;
+        if ((ownTime > 0) && (time > ownTime) && (time - ownTime < 10000)) {
+            ownClimbFPM = (altft - ownAltFt) * 60000.0 / (time - ownTime);
+        } else {
+            ownClimbFPM = 0.0;
+        }
+        ownAltFt = altft;
+        ownKts   = speed * Lib.KtPerMPS;
+        ownLat   = latitude;
+        ownLon   = longitude;
+        ownTime  = time;
+        double nmps = ownKts / 3600.0;
+        ownVX = nmps * Math.sin (Math.toRadians (heading));
+        ownVY = nmps * Math.cos (Math.toRadians (heading));
+
+        // re-check those already in conflict as they may now be out of range
+        boolean changed = false;
+        for (int i = conflictAddrs.size (); -- i >= 0;) {
+            changed |= evaluate (conflictAddrs.valueAt (i));
+        }
+
+        // check everything that could possibly get within range before lookahead time is up
+        double rangenm  = (ownKts + MAXTRAFKTS) * LOOKAHEADSEC / 3600.0 + CPAHORIZNM;
+        double coslat   = Math.cos (Math.toRadians (latitude));
+        int latcellmin  = gridCell (latitude - rangenm / Lib.NMPerDeg);
+        int latcellmax  = gridCell (latitude + rangenm / Lib.NMPerDeg);
+        int loncellmin  = gridCell (longitude - rangenm / Lib.NMPerDeg / coslat);
+        int loncellmax  = gridCell (longitude + rangenm / Lib.NMPerDeg / coslat);
+        for (int latcell = latcellmin; latcell <= latcellmax; latcell ++) {
+            for (int loncell = loncellmin; loncell <= loncellmax; loncell ++) {
+                Traffic tr = trafficGrid.get (gridKey (latcell, loncell));
+                for (; tr != null; tr = tr.gridNext) {
+                    changed |= evaluate (tr);
+                }
+            }
+        }
+        if (changed) publishConflicts ();
+    }
+
+    /**
+     * Get latest conflicts, sorted by time to closest approach.
+     * Does not need the repo locked.
+     */
+    public Conflicts getConflicts ()
+    {
+        return conflicts;
+    }
+
+    // compute closest point of approach of the given traffic to ownship
+    // update its conflict status and return true if published conflicts need updating
+    private boolean evaluate (Traffic tr)
+    {
+        boolean was = tr.conflict;
+        tr.conflict = false;
+
+        if (ownTime > 0) {
+
+            // traffic velocity in nm per second, x = east; y = north
+            double tvx = 0.0;
+            double tvy = 0.0;
+            if (! Double.isNaN (tr.speed) && ! Double.isNaN (tr.heading)) {
+                double nmps = tr.speed * Lib.KtPerMPS / 3600.0;
+                tvx = nmps * Math.sin (Math.toRadians (tr.heading));
+                tvy = nmps * Math.cos (Math.toRadians (tr.heading));
+            }
+
+            // traffic position relative to ownship, extrapolated to ownship's time
+            double dtsec = (ownTime - tr.time) / 1000.0;
+            double px = Lib.NormalLon (tr.longitude - ownLon) * Lib.NMPerDeg *
+                    Math.cos (Math.toRadians (ownLat)) + tvx * dtsec;
+            double py = (tr.latitude - ownLat) * Lib.NMPerDeg + tvy * dtsec;
+
+            // time of closest approach from relative velocity
+            double vx = tvx - ownVX;
+            double vy = tvy - ownVY;
+            double vv = vx * vx + vy * vy;
+            double t  = (vv > 0.0) ? - (px * vx + py * vy) / vv : 0.0;
+            if (t < 0.0) t = 0.0;
+
+            if (t <= LOOKAHEADSEC) {
+                double dist = Math.hypot (px + vx * t, py + vy * t);
+                if (dist < CPAHORIZNM) {
+                    double vert = Double.NaN;
+                    if (! Double.isNaN (tr.taltitude)) {
+                        double talt = tr.taltitude * Lib.FtPerM;
+                        if (! Double.isNaN (tr.climb)) talt += tr.climb * (dtsec + t) / 60.0;
+                        vert = talt - (ownAltFt + ownClimbFPM * t / 60.0);
+                    }
+                    if (Double.isNaN (vert) || (Math.abs (vert) < CPAVERTFT)) {
+                        tr.conflict  = true;
+                        tr.cpaSecs   = t;
+                        tr.cpaDistNM = dist;
+                        tr.cpaVertFt = vert;
+                    }
+                }
+            }
+        }
+
+        if (tr.conflict) {
+            conflictAddrs.put (tr.address, tr);
+            return true;
+        }
+        if (was) {
+            conflictAddrs.remove (tr.address);
+            return true;
+        }
+        return false;
+    }
+
+    // build new conflicts snapshot and publish it
+    private void publishConflicts ()
+    {
+        int n = conflictAddrs.size ();
+        Conflicts cs = new Conflicts ();
+        cs.addresses = new int[n];
+        cs.byTime = new Conflict[n];
+        for (int i = 0; i < n; i ++) {
+            Traffic tr = conflictAddrs.valueAt (i);
+            Conflict c = new Conflict ();
+            c.address   = tr.address;
+            c.callsign  = tr.callsign;
+            c.cpaSecs   = tr.cpaSecs;
+            c.cpaDistNM = tr.cpaDistNM;
+            c.cpaVertFt = tr.cpaVertFt;
+            cs.addresses[i] = conflictAddrs.keyAt (i);
+            cs.byTime[i] = c;
+        }
+        Arrays.sort (cs.byTime, conflictComparator);
+        conflicts = cs;
+    }
+
+    private final static Comparator<Conflict> conflictComparator = new Comparator<Conflict> () {
+        @Override
+        public int compare (Conflict a, Conflict b)
+        {
+            return Double.compare (a.cpaSecs, b.cpaSecs);
+        }
+    };
+
+    // put traffic in grid cell for its current position
+    // moves it from old cell if it was in a different one
+    private void linkTraffic (Traffic tr)
+    {
+        int key = gridKey (gridCell (tr.latitude), gridCell (tr.longitude));
+        if (tr.gridLinked) {
+            if (tr.gridKey == key) return;
+            unlinkGrid (tr);
+        }
+        Traffic head = trafficGrid.get (key);
+        tr.gridKey  = key;
+        tr.gridNext = head;
+        tr.gridPrev = null;
+        if (head != null) head.gridPrev = tr;
+        trafficGrid.put (key, tr);
+        tr.gridLinked = true;
+    }
+
+    // traffic is being removed from repo
+    // return true if published conflicts need updating
+    private boolean unlinkTraffic (Traffic tr)
+    {
+        if (tr.gridLinked) unlinkGrid (tr);
+        if (tr.conflict) {
+            tr.conflict = false;
+            conflictAddrs.remove (tr.address);
+            return true;
+        }
+        return false;
+    }
+
+    private void unlinkGrid (Traffic tr)
+    {
+        if (tr.gridPrev != null) {
+            tr.gridPrev.gridNext = tr.gridNext;
+        } else if (tr.gridNext != null) {
+            trafficGrid.put (tr.gridKey, tr.gridNext);
+        } else {
+            trafficGrid.remove (tr.gridKey);
+        }
+        if (tr.gridNext != null) tr.gridNext.gridPrev = tr.gridPrev;
+        tr.gridNext = null;
+        tr.gridPrev = null;
+        tr.gridLinked = false;
+    }
+
+    private static int gridCell (double deg)
+    {
+        return (int) Math.floor (deg * 60.0 / GRIDNM);
+    }
+
+    private static int gridKey (int latcell, int loncell)
+    {
+        return (latcell << 16) | (loncell & 0xFFFF);
+    }
 }
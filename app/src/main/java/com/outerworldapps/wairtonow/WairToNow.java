@@ -128,6 +128,7 @@ public class WairToNow extends Activity {
     private Paint gpsAvailablePaint;
     private Path airplanePath = new Path ();
     public  PlanView  planView;
+    public  PrefetchThread prefetchThread;
     private PointD pt = new PointD ();
     public  RouteView routeView;
     public  SensorsView sensorsView;
@@ -345,6 +346,11 @@ public class WairToNow extends Activity {
         collPaint.setColor (Color.argb (127, 255, 0, 0));
         collPaint.setStyle (Paint.Style.FILL_AND_STROKE);
 
+        /*
+         * Read topography and obstructions ahead of aircraft in background.
+         */
+        prefetchThread = new PrefetchThread (this);
+
         /*
          * Fetch nearby METARs in a background thread.
          * Don't start it until at least chartView and maintView are set up.
@@ -672,10 +678,21 @@ public class WairToNow extends Activity {
     {
         saveLastKnownPosition ();
         crumbsView.CloseFiles ();
+        if (prefetchThread != null) prefetchThread.terminate ();
         SQLiteDBs.CloseAll ();
         super.onDestroy ();
     }
 
+    /**
+     * System is running low on memory, release some cached data.
+     */
+    @Override
+    public void onTrimMemory (int level)
+    {
+        super.onTrimMemory (level);
+        Topography.trimMemory (level);
+    }
+
     /**
      * Stop any downloading in progress.
      */
@@ -899,6 +916,13 @@ public class WairToNow extends Activity {
         }
         currentMagVar  = Lib.MagVariation (currentGPSLat, currentGPSLon, currentGPSAlt, currentGPSTime);
 
+        if (colldetthread != null) colldetthread.gpsUpdated ();
+
+        synchronized (trafficRepo) {
+            trafficRepo.setOwnship (currentGPSSpd, currentGPSAlt, currentGPSHdg,
+                    currentGPSLat, currentGPSLon, currentGPSTime);
+        }
+
         if (pendingCourseSetWP != null) {
             chartView.SetCourseLine (currentGPSLat, currentGPSLon, pendingCourseSetWP);
             pendingCourseSetWP = null;
@@ -961,6 +985,8 @@ public class WairToNow extends Activity {
     {
         super.onResume ();
 
+        if (prefetchThread != null) prefetchThread.unpark ();
+
         hasAgreed = false;
         if (agreeButton != null) {
             SharedPreferences prefs = getPreferences (Activity.MODE_PRIVATE);
@@ -1032,11 +1058,17 @@ public class WairToNow extends Activity {
             sensorsView.stopGPSReceiverDelayed ();
         }
 
+        // stop reading topography and obstructions ahead while in background
+        if (prefetchThread != null) prefetchThread.park ();
+
         // maybe some database files marked for delete
         // so close our handles so they will be deleted
         if (dbdir != null) {
             SQLiteDBs.CloseAll ();
         }
+
+        // dump database query timing to logcat if debug option enabled
+        if (SQLiteDBs.statsEnabled) SQLiteDBs.LogStats ();
     }
 
     /**
@@ -1154,7 +1186,9 @@ public class WairToNow extends Activity {
                 ! blinkingRedOn () &&
                 ((System.currentTimeMillis () & 1024) != 0)) {
             float cprad = (float) mapper.CanPixPerNMAprox ();
-            for (int llmin : colldetthread.getBadLLMins ()) {
+            CollDetThread.BadLLMins badllmins = colldetthread.getBadLLMins ();
+            for (int i = 0; i < badllmins.count; i ++) {
+                int llmin = badllmins.llmins[i];
                 double lat = (llmin >> 16) / 60.0;
                 double lon = ((short) llmin) / 60.0;
                 if (mapper.LatLon2CanPixExact (lat, lon, pt)) {
@@ -26,15 +26,15 @@ import android.util.Log;
 import android.webkit.JavascriptInterface;
 import android.webkit.WebView;
 
-import java.lang.reflect.Constructor;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.TreeMap;
 
@@ -46,7 +46,7 @@ public abstract class Waypoint {
     public final static double ELEV_UNKNOWN = 999999.0;
     public final static int   VAR_UNKNOWN  = 999999;
 
-    public final static ArrayList<Class<? extends Waypoint>> wpclasses = GetWaypointClasses ();
+    public final static Factory[] wpfactories = GetWaypointFactories ();
 
     public final static Waypoint[] nullarray = new Waypoint[0];
 
@@ -56,31 +56,165 @@ public abstract class Waypoint {
     public double magvar = VAR_UNKNOWN;  // magnetic variation (+=West; -=East)
     public String ident;                 // for airports, ICAO identifier
 
-    private String typeabbr;
+    // filled in on first use, volatile cuz waypoints may be shared by threads via identCache
+    private volatile String typeabbr;
 
     private final static String[] columns_apt_desc = new String[] { "apt_desc" };
-    private final static String[] columns_kw_rowid = new String[] { "kw_rowid" };
     private final static String[] columns_pl_descrip_pl_filename = new String[] { "pl_descrip", "pl_filename", "pl_effdate" };
 
-    private static ArrayList<Class<? extends Waypoint>> GetWaypointClasses ()
+    // recent GetWaypointsByIdent() results, least recently used first
+    // the same Waypoint objects are given to all callers on all threads
+    private final static int MAXIDENTCACHE = 256;
+    private final static LinkedHashMap<String,LinkedList<Waypoint>> identCache =
+            new LinkedHashMap<String,LinkedList<Waypoint>> (MAXIDENTCACHE, 0.75F, true) {
+                @Override
+                protected boolean removeEldestEntry (Map.Entry<String,LinkedList<Waypoint>> eldest)
+                {
+                    return size () > MAXIDENTCACHE;
+                }
+            };
+    private static long identCacheHits;
+    private static long identCacheMisses;
+
+    /**
+     * Describes a waypoint database table and makes waypoints from its rows.
+     * One per table, built once so lookups don't need any reflection.
+     */
+    public static abstract class Factory {
+        public final String dbtable;    // eg, "airports"
+        public final String dbkeyid;    // eg, "apt_icaoid"
+        public final String dbkytbl;    // eg, "aptkeys" (or null if no keywords)
+        public final String dbprefix;   // eg, "apt_"
+        public final String[] dbcols;   // columns create() expects
+
+        public Factory (String dbtable, String dbkeyid, String dbkytbl, String[] dbcols)
+        {
+            this.dbtable  = dbtable;
+            this.dbkeyid  = dbkeyid;
+            this.dbkytbl  = dbkytbl;
+            this.dbprefix = dbkeyid.substring (0, 4);
+            this.dbcols   = dbcols;
+        }
+
+        // make waypoint from current row of query on dbtable selecting dbcols
+        public abstract Waypoint create (Cursor result, DBase dbtn, WairToNow wtn);
+    }
+
+    private static Factory[] GetWaypointFactories ()
     {
-        ArrayList<Class<? extends Waypoint>> al = new ArrayList<> (4);
-        al.add (Airport.class);
-        al.add (Fix.class);
-        al.add (Localizer.class);
-        al.add (Navaid.class);
-        return al;
+        return new Factory[] {
+            new Factory (Airport.dbtable, Airport.dbkeyid, Airport.dbkytbl, Airport.dbcols) {
+                @Override
+                public Waypoint create (Cursor result, DBase dbtn, WairToNow wtn)
+                {
+                    return new Airport (result, dbtn, wtn);
+                }
+            },
+            new Factory (Fix.dbtable, Fix.dbkeyid, Fix.dbkytbl, Fix.dbcols) {
+                @Override
+                public Waypoint create (Cursor result, DBase dbtn, WairToNow wtn)
+                {
+                    return new Fix (result, dbtn, wtn);
+                }
+            },
+            new Factory (Localizer.dbtable, Localizer.dbkeyid, Localizer.dbkytbl, Localizer.dbcols) {
+                @Override
+                public Waypoint create (Cursor result, DBase dbtn, WairToNow wtn)
+                {
+                    return new Localizer (result, dbtn, wtn);
+                }
+            },
+            new Factory (Navaid.dbtable, Navaid.dbkeyid, Navaid.dbkytbl, Navaid.dbcols) {
+                @Override
+                public Waypoint create (Cursor result, DBase dbtn, WairToNow wtn)
+                {
+                    return new Navaid (result, dbtn, wtn);
+                }
+            }
+        };
     }
 
     /**
      * Find waypoints by identifier (airport icaoid, localizer ident, navaid identifier, fix name).
      * May include a RNAV offset, ie, bearing and distance.
+     * The list is the caller's own but the waypoints in it are cached and shared
+     * with other callers and threads, so they must not be modified.
      */
     public static LinkedList<Waypoint> GetWaypointsByIdent (String ident, WairToNow wairToNow)
     {
         return GetWaypointsByIdent (ident, wairToNow, null);
     }
     public static LinkedList<Waypoint> GetWaypointsByIdent (String ident, WairToNow wairToNow, DBase dbtagname)
+    {
+        return GetWaypointsByIdent (ident, wairToNow, dbtagname, new boolean[1]);
+    }
+
+    // error[0] gets set if there was a database error so the results are incomplete
+    private static LinkedList<Waypoint> GetWaypointsByIdent (String ident, WairToNow wairToNow, DBase dbtagname, boolean[] error)
+    {
+        ident = ident.toUpperCase (Locale.US);
+
+        // key includes names of databases searched
+        // so it doesn't match if a database is enabled, disabled or a new cycle is swapped in
+        StringBuilder sb = new StringBuilder (ident);
+        for (SQLiteDBs sqldb : wairToNow.maintView.getWaypointDBs ()) {
+            if ((dbtagname == null) || (dbtagname == sqldb.dbaux)) {
+                sb.append (' ');
+                sb.append (sqldb.mydbname);
+            }
+        }
+        String key = sb.toString ();
+
+        LinkedList<Waypoint> wplist;
+        synchronized (identCache) {
+            wplist = identCache.get (key);
+            if (wplist != null) identCacheHits ++;
+            else identCacheMisses ++;
+        }
+        if (wplist == null) {
+            boolean[] uncachederror = new boolean[1];
+            wplist = GetWaypointsByIdentUncached (ident, wairToNow, dbtagname, uncachederror);
+
+            // don't cache incomplete results so a transient error doesn't hide waypoints
+            if (uncachederror[0]) {
+                error[0] = true;
+            } else {
+                synchronized (identCache) {
+                    identCache.put (key, wplist);
+                }
+            }
+        }
+
+        // caller may modify the list but not the cached one
+        return new LinkedList<> (wplist);
+    }
+
+    /**
+     * Forget all cached ident lookups.
+     * Called when a waypoint database is downloaded or deleted.
+     */
+    public static void FlushIdentCache ()
+    {
+        synchronized (identCache) {
+            identCache.clear ();
+        }
+    }
+
+    public static long getIdentCacheHits ()
+    {
+        synchronized (identCache) {
+            return identCacheHits;
+        }
+    }
+
+    public static long getIdentCacheMisses ()
+    {
+        synchronized (identCache) {
+            return identCacheMisses;
+        }
+    }
+
+    private static LinkedList<Waypoint> GetWaypointsByIdentUncached (String ident, WairToNow wairToNow, DBase dbtagname, boolean[] error)
     {
         LinkedList<Waypoint> wplist = new LinkedList<> ();
 
@@ -129,7 +263,7 @@ public abstract class Waypoint {
             /*
              * Look for all instances of the base identifier waypoint.
              */
-            LinkedList<Waypoint> basewps = GetWaypointsByIdent (rnavParse.baseident, wairToNow, dbtagname);
+            LinkedList<Waypoint> basewps = GetWaypointsByIdent (rnavParse.baseident, wairToNow, dbtagname, error);
 
             /*
              * Add the RNAV offset to each of those for the resultant value.
@@ -163,19 +297,15 @@ public abstract class Waypoint {
                         /*
                          * Search through each of the waypoint tables to get all matches.
                          */
-                        for (Class<? extends Waypoint> wpclass : wpclasses) {
-                            String dbtable  = (String) wpclass.getField ("dbtable").get (null);
-                            String dbkeyid  = (String) wpclass.getField ("dbkeyid").get (null);
-                            String[] dbcols = (String[]) wpclass.getField ("dbcols").get (null);
+                        for (Factory wpfactory : wpfactories) {
                             Cursor result = sqldb.query (
-                                    dbtable, dbcols,
-                                    dbkeyid + "=?", new String[] { ident },
+                                    wpfactory.dbtable, wpfactory.dbcols,
+                                    wpfactory.dbkeyid + "=?", new String[] { ident },
                                     null, null, null, null);
                             try {
                                 if (result.moveToFirst ()) {
                                     do {
-                                        Constructor<? extends Waypoint> ctor = wpclass.getConstructor (Cursor.class, DBase.class, WairToNow.class);
-                                        Waypoint wpe = ctor.newInstance (result, (DBase) sqldb.dbaux, wairToNow);
+                                        Waypoint wpe = wpfactory.create (result, (DBase) sqldb.dbaux, wairToNow);
                                         wplist.addLast (wpe);
                                     } while (result.moveToNext ());
                                 }
@@ -185,11 +315,12 @@ public abstract class Waypoint {
                         }
                     } catch (Exception e) {
                         Log.e (TAG, "error reading " + sqldb.mydbname, e);
+                        error[0] = true;
                     }
                 }
             }
             if (wplist.isEmpty () && ident.startsWith ("I") && !ident.startsWith ("I-")) {
-                return GetWaypointsByIdent ("I-" + ident.substring (1), wairToNow, dbtagname);
+                return GetWaypointsByIdent ("I-" + ident.substring (1), wairToNow, dbtagname, error);
             }
         }
         return wplist;
@@ -294,44 +425,69 @@ public abstract class Waypoint {
     }
 
     public static LinkedList<Waypoint> GetWaypointsMatchingKey (String key, WairToNow wtn)
+    {
+        return GetWaypointsMatchingKey (key, wtn, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get waypoints matching all the given keywords.
+     * The first keyword must match a keyword exactly, the others are checked with MatchesKeyword().
+     * Eg, keys=SPRINGFIELD MA
+     * and matches=SPRINGFIELD KY, SPRINGFIELD MA, SPRINGFIELD MO
+     * just allow SPRINGFIELD MA
+     * @param key = keywords as returned by NormalizeKey()
+     * @param skip = number of matches to skip over (for paging)
+     * @param take = max number of matches to return
+     */
+    public static LinkedList<Waypoint> GetWaypointsMatchingKey (String key, WairToNow wtn, int skip, int take)
     {
         String[] keys = key.split (" ");
         LinkedList<Waypoint> matches = new LinkedList<> ();
+        String[] whargs = new String[] { keys[0] };
+
+        // if only one keyword, database can stop when it has enough matches
+        // otherwise we don't know how many will pass MatchesKeyword()
+        boolean morekeys = false;
+        for (int i = 1; i < keys.length; i ++) {
+            if (! keys[i].equals ("")) morekeys = true;
+        }
 
         /*
-         * Scan database for match on first keyword in given string.
+         * Read list of airports, localizers, navaids and fixes into matches list,
+         * one query per table with the keyword table looked up by the database.
          */
         for (SQLiteDBs sqldb : wtn.maintView.getWaypointDBs ()) {
             try {
-                String kw = keys[0];
-
-                /*
-                 * Read list of airports, localizers, navaids and fixes into matches list.
-                 */
-                for (Class<? extends Waypoint> wpclass : wpclasses) {
-                    String dbkytbl = (String) wpclass.getField ("dbkytbl").get (null);
+                for (Factory wpfactory : wpfactories) {
+                    String dbkytbl = wpfactory.dbkytbl;
                     if (dbkytbl == null) continue;
+                    if (take <= 0) return matches;
+
+                    String where = "ROWID IN (SELECT kw_rowid FROM " + dbkytbl + " WHERE kw_key=?)";
+                    String limit = (morekeys || (skip + (long) take > Integer.MAX_VALUE)) ? null :
+                            Integer.toString (skip + take);
+
                     Cursor result = sqldb.query (
-                            dbkytbl, columns_kw_rowid,
-                            "kw_key=?", new String[] { kw },
-                            null, null, null, null);
+                            wpfactory.dbtable, wpfactory.dbcols,
+                            where, whargs,
+                            null, null, null, limit);
                     try {
                         if (result.moveToFirst ()) do {
-                            long rowid = result.getLong (0);
-                            String dbtable = (String) wpclass.getField ("dbtable").get (null);
-                            String[] dbcols = (String[]) wpclass.getField ("dbcols").get (null);
-                            Cursor result2 = sqldb.query (
-                                    dbtable, dbcols,
-                                    "ROWID=?", new String[] { Long.toString (rowid) },
-                                    null, null, null, null);
-                            try {
-                                if (result2.moveToFirst ()) {
-                                    Constructor<? extends Waypoint> ctor = wpclass.getConstructor (Cursor.class, DBase.class, WairToNow.class);
-                                    Waypoint wp = ctor.newInstance (result2, (DBase) sqldb.dbaux, wtn);
-                                    matches.add (wp);
-                                }
-                            } finally {
-                                result2.close ();
+                            Waypoint wp = wpfactory.create (result, (DBase) sqldb.dbaux, wtn);
+
+                            // make sure it matches all the other given keywords
+                            boolean matchesall = true;
+                            for (int i = 1; matchesall && (i < keys.length); i ++) {
+                                String kw = keys[i];
+                                matchesall = kw.equals ("") || wp.MatchesKeyword (kw);
+                            }
+                            if (! matchesall) continue;
+
+                            if (skip > 0) {
+                                -- skip;
+                            } else {
+                                matches.add (wp);
+                                if (-- take <= 0) break;
                             }
                         } while (result.moveToNext ());
                     } finally {
@@ -343,22 +499,6 @@ public abstract class Waypoint {
             }
         }
 
-        /*
-         * Make sure all the matches match all the given keywords.
-         * Eg, keys=SPRINGFIELD MA
-         * and matches=SPRINGFIELD KY, SPRINGFIELD MA, SPRINGFIELD MO
-         * just allow SPRINGFIELD MA
-         */
-        for (Iterator<Waypoint> wpit = matches.iterator (); wpit.hasNext ();) {
-            Waypoint wp = wpit.next ();
-            for (String kw : keys) {
-                if (!kw.equals ("") && !wp.MatchesKeyword (kw)) {
-                    wpit.remove ();
-                    break;
-                }
-            }
-        }
-
         return matches;
     }
 
@@ -571,7 +711,6 @@ public abstract class Waypoint {
     public static class Airport extends Waypoint  {
         public final static String  dbtable = "airports";
         public final static String  dbkeyid = "apt_icaoid";
-        @SuppressWarnings ("unused")  // reflection
         public final static String  dbkytbl = "aptkeys";
         // WebMetarThread assumes dbcols[0].equals("apt_icaoid")
         public final static String[] dbcols = new String[] { "apt_icaoid", "apt_faaid", "apt_elev",
@@ -586,10 +725,12 @@ public abstract class Waypoint {
         public boolean hastaf;      // TAFs can be retrieved from aviationweather.gov
         public DBase dbtagname;
 
-        private LinkedList<Runway> runwayPairs;
-        private NNHashMap<String,Runway> runways;
-        private String details;
-        private String menuKey;
+        // filled in on first use, volatile cuz airports may be shared by threads via identCache
+        // if two threads fill one in at the same time, both get equivalent values
+        private volatile LinkedList<Runway> runwayPairs;
+        private volatile NNHashMap<String,Runway> runways;
+        private volatile String details;
+        private volatile String menuKey;
         private WairToNow wairToNow;
 
         public Airport (Cursor result, DBase dbtn, WairToNow wtn)
@@ -625,6 +766,11 @@ public abstract class Waypoint {
             return name + " (" + dbtagname + ")";
         }
 
+        public String getICAOID ()
+        {
+            return ident;
+        }
+
         /**
          * Get contents of the details for the given airport.
          * It consists of the detail text
@@ -634,328 +780,350 @@ public abstract class Waypoint {
         @Override
         public void GetDetailViews (WaypointView wayview, WebView webview)
         {
-            waypointView = wayview;
-            interwebView = webview;
-            webview.addJavascriptInterface (this, "aptjso");
+            webview.addJavascriptInterface (new JavaScriptObject (wayview, webview), "aptjso");
             webview.loadUrl ("file:///android_asset/wpviewairport.html");
         }
 
-        // script debugging
-        //   aptjso.showLogcat ('pageLoaded*:A');
-        @SuppressWarnings ("unused")
-        @JavascriptInterface
-        public void showLogcat (String s)
-        {
-            Log.d (TAG, "aptjso: " + s);
-        }
+        /**
+         * Accessed by javascript in the waypoint view's webview.
+         * One per view cuz the airport itself may be shared via identCache.
+         */
+        private class JavaScriptObject {
+            private NNHashMap<String,Integer> latesteffdates;
+            private NNHashMap<String,Integer> latestexpdates;
+            private TreeMap<String,String> latestplates;
+            private final WaypointView waypointView;
+            private final WebView interwebView;
+
+            public JavaScriptObject (WaypointView wayview, WebView webview)
+            {
+                waypointView = wayview;
+                interwebView = webview;
+            }
 
-        @SuppressWarnings ("unused")
-        @JavascriptInterface
-        public String getICAOID ()
-        {
-            return ident;
-        }
+            // script debugging
+            //   aptjso.showLogcat ('pageLoaded*:A');
+            @SuppressWarnings ("unused")
+            @JavascriptInterface
+            public void showLogcat (String s)
+            {
+                Log.d (TAG, "aptjso: " + s);
+            }
 
-        // get metars and tafs for the given airport
-        // the source is WebMetarThread and any received from ADS-B
-        //   T<type>   METAR, TAF, etc
-        //   X<unixtime>
-        //   D<line>
-        @SuppressWarnings ("unused")
-        @JavascriptInterface
-        public String getMetars (String icaoid)
-        {
-            StringBuilder sb = new StringBuilder ();
-            synchronized (wairToNow.metarRepos) {
-                MetarRepo repo = wairToNow.metarRepos.get (icaoid);
-                if (repo != null) {
-                    for (Iterator<String> it = repo.metarTypes.keySet ().iterator (); it.hasNext (); ) {
-                        String type = it.next ();
-                        TreeMap<Long,Metar> metars = repo.metarTypes.nnget (type);
-                        if (metars.isEmpty ()) {
-                            it.remove ();
-                        } else {
-                            sb.append ('T');
-                            sb.append (type);
-                            sb.append ('\n');
-                            for (Metar metar : metars.values ()) {
-                                sb.append ('X');
-                                sb.append (metar.time);
+            @SuppressWarnings ("unused")
+            @JavascriptInterface
+            public String getICAOID ()
+            {
+                return ident;
+            }
+
+            // get metars and tafs for the given airport
+            // the source is WebMetarThread and any received from ADS-B
+            //   T<type>   METAR, TAF, etc
+            //   X<unixtime>
+            //   D<line>
+            @SuppressWarnings ("unused")
+            @JavascriptInterface
+            public String getMetars (String icaoid)
+            {
+                StringBuilder sb = new StringBuilder ();
+                synchronized (wairToNow.metarRepos) {
+                    MetarRepo repo = wairToNow.metarRepos.get (icaoid);
+                    if (repo != null) {
+                        for (Iterator<String> it = repo.metarTypes.keySet ().iterator (); it.hasNext (); ) {
+                            String type = it.next ();
+                            TreeMap<Long,Metar> metars = repo.metarTypes.nnget (type);
+                            if (metars.isEmpty ()) {
+                                it.remove ();
+                            } else {
+                                sb.append ('T');
+                                sb.append (type);
                                 sb.append ('\n');
-                                String[] lines = metar.data.split ("\n");
-                                for (String line : lines) {
-                                    sb.append ('D');
-                                    sb.append (line);
+                                for (Metar metar : metars.values ()) {
+                                    sb.append ('X');
+                                    sb.append (metar.time);
                                     sb.append ('\n');
+                                    String[] lines = metar.data.split ("\n");
+                                    for (String line : lines) {
+                                        sb.append ('D');
+                                        sb.append (line);
+                                        sb.append ('\n');
+                                    }
                                 }
                             }
                         }
                     }
                 }
+                return sb.toString ();
             }
-            return sb.toString ();
-        }
 
-        // get airport detail text (runways, frequencies)
-        @SuppressWarnings ("unused")
-        @JavascriptInterface
-        public String getDetail ()
-        {
-            return GetDetailText ();
-        }
-
-        private NNHashMap<String,Integer> latesteffdates;
-        private NNHashMap<String,Integer> latestexpdates;
-        private TreeMap<String,String> latestplates;
-        private WaypointView waypointView;
-        private WebView interwebView;
+            // get airport detail text (runways, frequencies)
+            @SuppressWarnings ("unused")
+            @JavascriptInterface
+            public String getDetail ()
+            {
+                return GetDetailText ();
+            }
 
-        // get plate list, one plate per line
-        // lines are like APD-AIRPORT DIAGRAM, IAP-ILS RWY 07, DP-BEVERLY ONE, ...
-        @SuppressWarnings ("unused")
-        @JavascriptInterface
-        public String getPlates ()
-        {
-            // get list of plates from database and the corresponding .gif file names
-            String[] dbnames = SQLiteDBs.Enumerate ();
-            int latestexpdate = 0;
-            latestplates = new TreeMap<> ();
-            latesteffdates = new NNHashMap<> ();
-            latestexpdates = new NNHashMap<> ();
-
-            for (String dbname : dbnames) {
-                if (dbname.startsWith ("nobudb/plates_") && dbname.endsWith (".db")) {
-                    int expdate = Integer.parseInt (dbname.substring (14, dbname.length () - 3));
-                    if (latestexpdate < expdate) {
-                        SQLiteDBs sqldb = SQLiteDBs.open (dbname);
-                        if (sqldb != null) {
-                            MaintView.createPlates2Table (sqldb);
-                            Cursor result = sqldb.query (
-                                    "plates2", columns_pl_descrip_pl_filename,
-                                    "pl_faaid=? OR pl_icaoid=?",
-                                    new String[] { this.faaident, this.ident },
-                                    null, null, null, null);
-                            try {
-                                if (result.moveToFirst ()) {
-                                    latestplates.clear ();
-                                    do {
-                                        String descrip = result.getString (0);
-                                        latestplates.put (descrip, result.getString (1));
-                                        latesteffdates.put (descrip, result.getInt (2));
-                                        latestexpdates.put (descrip, expdate);
-                                    } while (result.moveToNext ());
-                                    latestexpdate = expdate;
+            // get plate list, one plate per line
+            // lines are like APD-AIRPORT DIAGRAM, IAP-ILS RWY 07, DP-BEVERLY ONE, ...
+            @SuppressWarnings ("unused")
+            @JavascriptInterface
+            public String getPlates ()
+            {
+                // get list of plates from database and the corresponding .gif file names
+                String[] dbnames = SQLiteDBs.Enumerate ();
+                int latestexpdate = 0;
+                latestplates = new TreeMap<> ();
+                latesteffdates = new NNHashMap<> ();
+                latestexpdates = new NNHashMap<> ();
+
+                for (String dbname : dbnames) {
+                    if (dbname.startsWith ("nobudb/plates_") && dbname.endsWith (".db")) {
+                        int expdate = Integer.parseInt (dbname.substring (14, dbname.length () - 3));
+                        if (latestexpdate < expdate) {
+                            SQLiteDBs sqldb = SQLiteDBs.open (dbname);
+                            if (sqldb != null) {
+                                MaintView.createPlates2Table (sqldb);
+                                Cursor result = sqldb.query (
+                                        "plates2", columns_pl_descrip_pl_filename,
+                                        "pl_faaid=? OR pl_icaoid=?",
+                                        new String[] { faaident, ident },
+                                        null, null, null, null);
+                                try {
+                                    if (result.moveToFirst ()) {
+                                        latestplates.clear ();
+                                        do {
+                                            String descrip = result.getString (0);
+                                            latestplates.put (descrip, result.getString (1));
+                                            latesteffdates.put (descrip, result.getInt (2));
+                                            latestexpdates.put (descrip, expdate);
+                                        } while (result.moveToNext ());
+                                        latestexpdate = expdate;
+                                    }
+                                } finally {
+                                    result.close ();
                                 }
-                            } finally {
-                                result.close ();
                             }
                         }
                     }
                 }
-            }
 
-            // also, we can synthesize a runway diagram from openstreetmap tiles
-            // give it a way-in-the-future expiration date cuz we build it on the fly
-            // and so don't need to download anything for it
-            latestplates.put   ("RWY-RUNWAY DIAGRAM", "-");
-            latesteffdates.put ("RWY-RUNWAY DIAGRAM", 0);
-            latestexpdates.put ("RWY-RUNWAY DIAGRAM", 99999999);
-
-            // maybe make up synthetic ILS/DME plate for each runway
-            if (wairToNow.optionsView.synthILSDMEOption.checkBox.isChecked ()) {
-                for (String rwyno : GetRunways ().keySet ()) {
-                    String plateid = IAPSynthPlateImage.prefix + rwyno;
-                    latestplates.put (plateid, "-");
-                    latesteffdates.put (plateid, 0);
-                    latestexpdates.put (plateid, 99999999);
+                // also, we can synthesize a runway diagram from openstreetmap tiles
+                // give it a way-in-the-future expiration date cuz we build it on the fly
+                // and so don't need to download anything for it
+                latestplates.put   ("RWY-RUNWAY DIAGRAM", "-");
+                latesteffdates.put ("RWY-RUNWAY DIAGRAM", 0);
+                latestexpdates.put ("RWY-RUNWAY DIAGRAM", 99999999);
+
+                // maybe make up synthetic ILS/DME plate for each runway
+                if (wairToNow.optionsView.synthILSDMEOption.checkBox.isChecked ()) {
+                    for (String rwyno : GetRunways ().keySet ()) {
+                        String plateid = IAPSynthPlateImage.prefix + rwyno;
+                        latestplates.put (plateid, "-");
+                        latesteffdates.put (plateid, 0);
+                        latestexpdates.put (plateid, 99999999);
+                    }
+                }
+
+                // make a line for each plate (apt diagram, iap, sid, star, etc)
+                StringBuilder sb = new StringBuilder ();
+                for (String descrip : latestplates.keySet ()) {
+                    sb.append (descrip);
+                    sb.append ('\n');
                 }
+                return sb.toString ();
             }
 
-            // make a line for each plate (apt diagram, iap, sid, star, etc)
-            StringBuilder sb = new StringBuilder ();
-            for (String descrip : latestplates.keySet ()) {
-                sb.append (descrip);
-                sb.append ('\n');
+            // get url that when fetched, will fetch latest METARs and TAFs from FAA into
+            // wairToNow.metarRepo for this airport.  then use getMetars() to fetch from repo.
+            @SuppressWarnings ("unused")
+            @JavascriptInterface
+            public String getMetarUrl (String icaoid)
+            {
+                return wairToNow.webMetarThread.getWebMetarProxyURL (icaoid);
             }
-            return sb.toString ();
-        }
 
-        // get url that when fetched, will fetch latest METARs and TAFs from FAA into
-        // wairToNow.metarRepo for this airport.  then use getMetars() to fetch from repo.
-        @SuppressWarnings ("unused")
-        @JavascriptInterface
-        public String getMetarUrl (String icaoid)
-        {
-            return wairToNow.webMetarThread.getWebMetarProxyURL (icaoid);
-        }
+            // get url that when fetched, returns a string 'true' or 'false' if internet is accessible
+            @SuppressWarnings ("unused")
+            @JavascriptInterface
+            public String getInetStatusUrl ()
+            {
+                return wairToNow.webMetarThread.getInetStatusURL ();
+            }
 
-        // get url that when fetched, returns a string 'true' or 'false' if internet is accessible
-        @SuppressWarnings ("unused")
-        @JavascriptInterface
-        public String getInetStatusUrl ()
-        {
-            return wairToNow.webMetarThread.getInetStatusURL ();
-        }
+            // plate link clicked, display corresponding page
+            @SuppressWarnings ("unused")
+            @JavascriptInterface
+            public void plateClicked (final String descrip)
+            {
+                wairToNow.runOnUiThread (new Runnable () {
+                    @Override
+                    public void run ()
+                    {
+                        String filename = latestplates.get (descrip);
+                        int effdate = latesteffdates.nnget (descrip);
+                        int expdate = latestexpdates.nnget (descrip);
+                        PlateView pv = new PlateView (waypointView, filename, Airport.this, descrip, expdate, true, effdate);
+                        waypointView.selectedPlateView = pv;
+                        wairToNow.SetCurrentTab (pv);
+                    }
+                });
+            }
 
-        // plate link clicked, display corresponding page
-        @SuppressWarnings ("unused")
-        @JavascriptInterface
-        public void plateClicked (final String descrip)
-        {
-            wairToNow.runOnUiThread (new Runnable () {
-                @Override
-                public void run ()
-                {
-                    String filename = latestplates.get (descrip);
-                    int effdate = latesteffdates.nnget (descrip);
-                    int expdate = latestexpdates.nnget (descrip);
-                    PlateView pv = new PlateView (waypointView, filename, Airport.this, descrip, expdate, true, effdate);
-                    waypointView.selectedPlateView = pv;
-                    wairToNow.SetCurrentTab (pv);
-                }
-            });
-        }
-
-        // convert zulu time range to airport local time range
-        //  input:
-        //   ddhh/ddhh = time range
-        //  output:
-        //   returns local time formatted string
-        //     dd hh:mm..hh:mm tzname
-        @SuppressWarnings ("unused")
-        @JavascriptInterface
-        public String getAptLclRange (String ddhh_ddhh)
-        {
-            if (ddhh_ddhh.length () != 9) return "";
-            if (ddhh_ddhh.charAt (4) != '/') return "";
-            String fromtm = getAptLclTime (ddhh_ddhh.substring (0, 4) + "00");
-            String totime = getAptLclTime (ddhh_ddhh.substring (5, 9) + "00");
-            return fromtm.substring (0, 8) + ".." + totime.substring (3);
-        }
-
-        // convert zulu time to airport local time
-        //  input:
-        //   ddhhmmZ = time in 'ddhhmm' format
-        //  output:
-        //   returns local time formatted string
-        //     dd hh:mm tzname
-        @SuppressWarnings ("unused")
-        @JavascriptInterface
-        public String getAptLclTime (String ddhhmmz)
-        {
-            int dd = Integer.parseInt (ddhhmmz.substring (0, 2));
-            int hh = Integer.parseInt (ddhhmmz.substring (2, 4));
-            int mm = Integer.parseInt (ddhhmmz.substring (4, 6));
-            GregorianCalendar gc = new GregorianCalendar (Lib.tzUtc, Locale.US);
-            int nowdd = gc.get (GregorianCalendar.DAY_OF_MONTH);
-            if ((nowdd > 20) && (dd < 10)) gc.add (GregorianCalendar.MONTH,  1);
-            if ((nowdd < 10) && (dd > 20)) gc.add (GregorianCalendar.MONTH, -1);
-            gc.set (GregorianCalendar.DAY_OF_MONTH, dd);
-            gc.set (GregorianCalendar.HOUR_OF_DAY, hh);
-            gc.set (GregorianCalendar.MINUTE, mm);
-            gc.set (GregorianCalendar.SECOND, 0);
-            gc.set (GregorianCalendar.MILLISECOND, 0);
-            TimeZone tz = tzname.equals ("") ? Lib.tzUtc : TimeZone.getTimeZone (tzname);
-            SimpleDateFormat sdf = new SimpleDateFormat ("dd HH:mm", Locale.US);
-            sdf.setTimeZone (tz);
-            return sdf.format (gc.getTime ()) + " " + Lib.simpTZName (tz.getID ());
-        }
-
-        // see if airport state's data is downloaded
-        @SuppressWarnings ("unused")
-        @JavascriptInterface
-        public int isDownloaded ()
-        {
-            return wairToNow.maintView.GetLatestPlatesExpDate (state);
-        }
+            // convert zulu time range to airport local time range
+            //  input:
+            //   ddhh/ddhh = time range
+            //  output:
+            //   returns local time formatted string
+            //     dd hh:mm..hh:mm tzname
+            @SuppressWarnings ("unused")
+            @JavascriptInterface
+            public String getAptLclRange (String ddhh_ddhh)
+            {
+                if (ddhh_ddhh.length () != 9) return "";
+                if (ddhh_ddhh.charAt (4) != '/') return "";
+                String fromtm = getAptLclTime (ddhh_ddhh.substring (0, 4) + "00");
+                String totime = getAptLclTime (ddhh_ddhh.substring (5, 9) + "00");
+                return fromtm.substring (0, 8) + ".." + totime.substring (3);
+            }
 
-        // start downloading state zip file
-        // when download completes, re-display view page, hopefully with plates filled in
-        @SuppressWarnings ("unused")
-        @JavascriptInterface
-        public void dwnldState ()
-        {
-            wairToNow.runOnUiThread (new Runnable () {
-                @Override
-                public void run ()
-                {
-                    wairToNow.maintView.StateDwnld (state, new Runnable () {
-                        @Override
-                        public void run ()
-                        {
-                            interwebView.loadUrl ("file:///android_asset/wpviewairport.html");
-                        }
-                    });
-                }
-            });
-        }
+            // convert zulu time to airport local time
+            //  input:
+            //   ddhhmmZ = time in 'ddhhmm' format
+            //  output:
+            //   returns local time formatted string
+            //     dd hh:mm tzname
+            @SuppressWarnings ("unused")
+            @JavascriptInterface
+            public String getAptLclTime (String ddhhmmz)
+            {
+                int dd = Integer.parseInt (ddhhmmz.substring (0, 2));
+                int hh = Integer.parseInt (ddhhmmz.substring (2, 4));
+                int mm = Integer.parseInt (ddhhmmz.substring (4, 6));
+                GregorianCalendar gc = new GregorianCalendar (Lib.tzUtc, Locale.US);
+                int nowdd = gc.get (GregorianCalendar.DAY_OF_MONTH);
+                if ((nowdd > 20) && (dd < 10)) gc.add (GregorianCalendar.MONTH,  1);
+                if ((nowdd < 10) && (dd > 20)) gc.add (GregorianCalendar.MONTH, -1);
+                gc.set (GregorianCalendar.DAY_OF_MONTH, dd);
+                gc.set (GregorianCalendar.HOUR_OF_DAY, hh);
+                gc.set (GregorianCalendar.MINUTE, mm);
+                gc.set (GregorianCalendar.SECOND, 0);
+                gc.set (GregorianCalendar.MILLISECOND, 0);
+                TimeZone tz = tzname.equals ("") ? Lib.tzUtc : TimeZone.getTimeZone (tzname);
+                SimpleDateFormat sdf = new SimpleDateFormat ("dd HH:mm", Locale.US);
+                sdf.setTimeZone (tz);
+                return sdf.format (gc.getTime ()) + " " + Lib.simpTZName (tz.getID ());
+            }
 
-        // open airport details page as a new main page
-        @SuppressWarnings ("unused")
-        @JavascriptInterface
-        public void detailPage ()
-        {
-            wairToNow.runOnUiThread (new Runnable () {
-                @Override
-                public void run ()
-                {
-                    AptDetailsView adv = new AptDetailsView (wairToNow, Airport.this);
-                    wairToNow.SetCurrentTab (adv);
-                }
-            });
-        }
+            // see if airport state's data is downloaded
+            @SuppressWarnings ("unused")
+            @JavascriptInterface
+            public int isDownloaded ()
+            {
+                return wairToNow.maintView.GetLatestPlatesExpDate (state);
+            }
 
-        // search for nearest airport that has metar and taf
-        // might be this one, otherwise look within 100nm
-        // returns singleicaoid or metaricaoid,taficaoid
-        @SuppressWarnings ("unused")
-        @JavascriptInterface
-        public String getNearestMetafIDs ()
-        {
-            if (hasmet && hastaf) return ident;
-
-            double nmradius = 100.0;
-            double northlat = lat + nmradius / Lib.NMPerDeg;
-            double southlat = lat - nmradius / Lib.NMPerDeg;
-            double eastlon  = lon + nmradius / Lib.NMPerDeg / Mathf.cosdeg (lat);
-            double westlon  = lon - nmradius / Lib.NMPerDeg / Mathf.cosdeg (lat);
-            double metdist  = 999.0;
-            double tafdist  = 999.0;
-            String meticao  = "";
-            String taficao  = "";
-
-            SQLiteDBs sqldb = wairToNow.maintView.getWaypointDB (dbtagname);
-            if (sqldb != null) {
-                String where    = "(apt_lat<" + northlat + ") AND (apt_lat>" + southlat +
-                        ") AND (apt_lon<" + eastlon + ") AND (apt_lon>" + westlon +
-                        ") AND (apt_metaf>'')";
-                Cursor result = sqldb.query (
-                        "airports", new String[] { "apt_icaoid", "apt_lat", "apt_lon", "apt_metaf" },
-                        where, null, null, null, null, null);
-                try {
-                    if (result.moveToFirst ()) {
-                        do {
-                            String wpicao = result.getString (0);
-                            double wplat  = result.getDouble (1);
-                            double wplon  = result.getDouble (2);
-                            String metaf  = result.getString (3);
-                            double wpdist = Lib.LatLonDist (wplat, wplon, lat, lon);
-                            if (metaf.contains ("M") && (metdist > wpdist)) {
-                                metdist = wpdist;
-                                meticao = wpicao;
-                            }
-                            if (metaf.contains ("T") && (tafdist > wpdist)) {
-                                tafdist = wpdist;
-                                taficao = wpicao;
+            // start downloading state zip file
+            // when download completes, re-display view page, hopefully with plates filled in
+            @SuppressWarnings ("unused")
+            @JavascriptInterface
+            public void dwnldState ()
+            {
+                wairToNow.runOnUiThread (new Runnable () {
+                    @Override
+                    public void run ()
+                    {
+                        wairToNow.maintView.StateDwnld (state, new Runnable () {
+                            @Override
+                            public void run ()
+                            {
+                                interwebView.loadUrl ("file:///android_asset/wpviewairport.html");
                             }
-                        } while (result.moveToNext ());
+                        });
                     }
-                } finally {
-                    result.close ();
+                });
+            }
+
+            // open airport details page as a new main page
+            @SuppressWarnings ("unused")
+            @JavascriptInterface
+            public void detailPage ()
+            {
+                wairToNow.runOnUiThread (new Runnable () {
+                    @Override
+                    public void run ()
+                    {
+                        AptDetailsView adv = new AptDetailsView (wairToNow, Airport.this);
+                        wairToNow.SetCurrentTab (adv);
+                    }
+                });
+            }
+
+            // search for nearest airport that has metar and taf
+            // might be this one, otherwise look within 100nm
+            // returns singleicaoid or metaricaoid,taficaoid
+            @SuppressWarnings ("unused")
+            @JavascriptInterface
+            public String getNearestMetafIDs ()
+            {
+                if (hasmet && hastaf) return ident;
+
+                double nmradius = 100.0;
+
+                // use in-memory index if built so we don't have to open database on this thread
+                MetafIndex index = MetafIndex.get (wairToNow, dbtagname);
+                if (index != null) {
+                    String meticao = index.nearestMetar (lat, lon, nmradius);
+                    String taficao = index.nearestTaf (lat, lon, nmradius);
+                    if (meticao == null) meticao = "";
+                    if (taficao == null) taficao = "";
+                    return meticao.equals (taficao) ? meticao : (meticao + "," + taficao);
                 }
+
+                // not built yet, scan database
+                double northlat = lat + nmradius / Lib.NMPerDeg;
+                double southlat = lat - nmradius / Lib.NMPerDeg;
+                double eastlon  = lon + nmradius / Lib.NMPerDeg / Mathf.cosdeg (lat);
+                double westlon  = lon - nmradius / Lib.NMPerDeg / Mathf.cosdeg (lat);
+                double metdist  = 999.0;
+                double tafdist  = 999.0;
+                String meticao  = "";
+                String taficao  = "";
+
+                SQLiteDBs sqldb = wairToNow.maintView.getWaypointDB (dbtagname);
+                if (sqldb != null) {
+                    String where    = "(apt_lat<" + northlat + ") AND (apt_lat>" + southlat +
+                            ") AND (apt_lon<" + eastlon + ") AND (apt_lon>" + westlon +
+                            ") AND (apt_metaf>'')";
+                    Cursor result = sqldb.query (
+                            "airports", new String[] { "apt_icaoid", "apt_lat", "apt_lon", "apt_metaf" },
+                            where, null, null, null, null, null);
+                    try {
+                        if (result.moveToFirst ()) {
+                            do {
+                                String wpicao = result.getString (0);
+                                double wplat  = result.getDouble (1);
+                                double wplon  = result.getDouble (2);
+                                String metaf  = result.getString (3);
+                                double wpdist = Lib.LatLonDist (wplat, wplon, lat, lon);
+                                if (metaf.contains ("M") && (metdist > wpdist)) {
+                                    metdist = wpdist;
+                                    meticao = wpicao;
+                                }
+                                if (metaf.contains ("T") && (tafdist > wpdist)) {
+                                    tafdist = wpdist;
+                                    taficao = wpicao;
+                                }
+                            } while (result.moveToNext ());
+                        }
+                    } finally {
+                        result.close ();
+                    }
+                }
+                SQLiteDBs.CloseAll ();
+                return meticao.equals (taficao) ? meticao : (meticao + "," + taficao);
             }
-            SQLiteDBs.CloseAll ();
-            return meticao.equals (taficao) ? meticao : (meticao + "," + taficao);
         }
 
         @Override
@@ -995,29 +1163,17 @@ public abstract class Waypoint {
 
                 /*
                  * Read list of runways into airport waypoint list.
+                 * They come from the regional cache shared with nearby airports.
                  */
-                runways = new NNHashMap<> ();
+                NNHashMap<String,Runway> rwys = new NNHashMap<> ();
                 SQLiteDBs sqldb = wairToNow.maintView.getWaypointDB (dbtagname);
                 if (sqldb != null) {
-                    try {
-                        Cursor result = sqldb.query (
-                                "runways", Runway.dbcols,
-                                "rwy_icaoid=?", new String[] { this.ident },
-                                null, null, null, null);
-                        try {
-                            if (result.moveToFirst ()) {
-                                do {
-                                    Runway rw = new Runway (result, this);
-                                    this.runways.put (rw.number, rw);
-                                } while (result.moveToNext ());
-                            }
-                        } finally {
-                            result.close ();
-                        }
-                    } catch (Exception e) {
-                        Log.e (TAG, "error reading " + sqldb.mydbname, e);
+                    for (RunwayCache.Row row : RunwayCache.GetAirportRunways (sqldb, ident, lat, lon)) {
+                        Runway rw = new Runway (row, this);
+                        rwys.put (rw.number, rw);
                     }
                 }
+                runways = rwys;
             }
             return runways;
         }
@@ -1200,10 +1356,6 @@ public abstract class Waypoint {
      * Every record in runways.csv that we are able to parse.
      */
     public static class Runway extends Waypoint {
-        public final static String[] dbcols = new String[] { "rwy_number",
-                "rwy_truehdg", "rwy_tdze", "rwy_beglat", "rwy_beglon", "rwy_endlat", "rwy_endlon",
-                "rwy_ritraf", "rwy_length", "rwy_width" };
-
         public Airport airport;
         public String  number;   // eg, "02L"
         public int     truehdg;  // published
@@ -1215,28 +1367,28 @@ public abstract class Waypoint {
         private DBase dbtagname;
         private int lengthFt;
         private int widthFt;
-        private Localizer synthloc;
+        private volatile Localizer synthloc;  // filled in on first use
 
-        public Runway (Cursor result, Airport apt)
+        public Runway (RunwayCache.Row row, Airport apt)
         {
-            number   = result.getString (0);
-            elev     = result.isNull (2) ? apt.elev : result.getDouble (2);
-            lat      = result.getDouble (3);
-            lon      = result.getDouble (4);
-            endLat   = result.getDouble (5);
-            endLon   = result.getDouble (6);
-            ritraf   = result.getString (7).equals ("Y");
-            lengthFt = result.getInt (8);
-            widthFt  = result.getInt (9);
+            number   = row.number;
+            elev     = Double.isNaN (row.tdze) ? apt.elev : row.tdze;
+            lat      = row.beglat;
+            lon      = row.beglon;
+            endLat   = row.endlat;
+            endLon   = row.endlon;
+            ritraf   = row.ritraf;
+            lengthFt = row.lengthFt;
+            widthFt  = row.widthFt;
             airport  = apt;
             dbtagname = apt.dbtagname;
 
             trueHdg = Lib.LatLonTC (lat, lon, endLat, endLon);
-            if (result.isNull (1)) {
+            if (row.truehdg == 0) {
                 truehdg = (int) Math.round (trueHdg);
                 if (truehdg <= 0) truehdg += 360;
             } else {
-                truehdg = result.getInt (1);
+                truehdg = row.truehdg;
             }
 
             // set up Waypoint values
@@ -1303,13 +1455,9 @@ public abstract class Waypoint {
     }
 
     public static class Localizer extends Waypoint {
-        @SuppressWarnings ("unused")  // reflection
         public final static String  dbtable = "localizers";
-        @SuppressWarnings ("unused")  // reflection
         public final static String  dbkeyid = "loc_faaid";
-        @SuppressWarnings ("unused")  // reflection
         public final static String  dbkytbl = "lockeys";
-        @SuppressWarnings ("unused")  // reflection
         public final static String[] dbcols = new String[] {
                 "loc_type", "loc_faaid", "loc_elev",
                 "loc_name", "loc_lat", "loc_lon", "loc_thdg",
@@ -1331,7 +1479,6 @@ public abstract class Waypoint {
         private Airport airport;
         private DBase dbtagname;
 
-        @SuppressWarnings("unused")  // used by reflection
         public Localizer (Cursor result, DBase dbtn, WairToNow wtn)
         {
             this.type     = result.getString  (0);
@@ -1435,13 +1582,9 @@ public abstract class Waypoint {
     }
 
     public static class Navaid extends Waypoint {
-        @SuppressWarnings ("unused")  // reflection
         public final static String  dbtable = "navaids";
-        @SuppressWarnings ("unused")  // reflection
         public final static String  dbkeyid = "nav_faaid";
-        @SuppressWarnings ("unused")  // reflection
         public final static String  dbkytbl = "navkeys";
-        @SuppressWarnings ("unused")  // reflection
         public final static String[] dbcols = new String[] { "nav_type", "nav_faaid", "nav_elev", "nav_name", "nav_lat", "nav_lon", "nav_magvar" };
 
         public String type;     // "NDB", "VOR", "VOR/DME", etc
@@ -1449,7 +1592,6 @@ public abstract class Waypoint {
 
         private DBase dbtagname;
 
-        @SuppressWarnings("unused")  // used by reflection
         public Navaid (Cursor result, DBase dbtn, WairToNow wtn)
         {
             this.type   = result.getString (0);
@@ -1495,19 +1637,14 @@ public abstract class Waypoint {
     }
 
     private static class Fix extends Waypoint {
-        @SuppressWarnings ("unused")  // reflection
         public final static String  dbtable = "fixes";
-        @SuppressWarnings ("unused")  // reflection
         public final static String  dbkeyid = "fix_name";
-        @SuppressWarnings ("unused")  // reflection
         public final static String  dbkytbl = "fixkeys";
-        @SuppressWarnings ("unused")  // reflection
         public final static String[] dbcols = new String[] { "fix_name", "fix_lat", "fix_lon", "fix_desc" };
 
         private DBase dbtagname;
         private String descr;
 
-        @SuppressWarnings("unused")  // used by reflection
         public Fix (Cursor result, DBase dbtn, WairToNow wtn)
         {
             this.ident = result.getString (0);
@@ -0,0 +1,361 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+
+package com.outerworldapps.wairtonow;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * In-memory spatial index of the airports, fixes, localizers and navaids in a waypoint database.
+ * Holds just the type, rowid and lat/lon of each waypoint, packed into arrays sorted by grid cell,
+ * so window queries don't need to scan the database.
+ * Built in the background the first time a database is asked for.
+ */
+public class WaypointIndex {
+    private final static String TAG = "WairToNow";
+
+    private final static double CELLDEG = 0.25;
+    private final static int NLATCELLS = (int) Math.round (180.0 / CELLDEG) + 1;
+    private final static int NLONCELLS = (int) Math.round (360.0 / CELLDEG) + 1;
+    private final static int BATCHSIZE = 256;
+
+    // built indexes, keyed by database name
+    // also locks building
+    private final static NNHashMap<String,WaypointIndex> indexes = new NNHashMap<> ();
+
+    // names of databases being indexed
+    private final static HashSet<String> building = new HashSet<> ();
+
+    /**
+     * Entries found by query(), re-used from one query to the next.
+     */
+    public static class Hits {
+        public int count;
+        public int[] entries = new int[256];
+
+        public void add (int entry)
+        {
+            if (count == entries.length) entries = Arrays.copyOf (entries, count * 2);
+            entries[count++] = entry;
+        }
+    }
+
+    public final DBase dbtagname;
+    public final String dbname;
+
+    private byte[] types;       // index in Waypoint.wpfactories[]
+    private float[] lats;
+    private float[] lons;
+    private int[] cellkeys;     // latcell * NLONCELLS + loncell, ascending, one per non-empty cell
+    private int[] cellstarts;   // index of first entry in each cell, plus total at the end
+    private int[] rowids;       // ROWID within the type's table
+
+    /**
+     * Get index for the given waypoint database.
+     * If not built yet, start building it in the background.
+     * @return index or null if not available yet
+     */
+    public static WaypointIndex get (SQLiteDBs sqldb)
+    {
+        synchronized (indexes) {
+            WaypointIndex index = indexes.get (sqldb.mydbname);
+            if ((index == null) && building.add (sqldb.mydbname)) {
+                new BuildThread (sqldb).start ();
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Reads the locations of all waypoints in a database and indexes them.
+     */
+    private static class BuildThread extends Thread {
+        private SQLiteDBs sqldb;
+
+        public BuildThread (SQLiteDBs sqldb)
+        {
+            this.sqldb = sqldb;
+            setName ("WaypointIndex " + sqldb.mydbname);
+            setPriority (MIN_PRIORITY);
+        }
+
+        @Override
+        public void run ()
+        {
+            try {
+                // open database for this thread
+                if (SQLiteDBs.open (sqldb.mydbname) == null) return;
+
+                WaypointIndex index = new WaypointIndex (sqldb);
+                synchronized (indexes) {
+
+                    // forget about any old version of the same database
+                    for (Iterator<WaypointIndex> it = indexes.values ().iterator (); it.hasNext ();) {
+                        if (it.next ().dbtagname == index.dbtagname) it.remove ();
+                    }
+                    indexes.put (sqldb.mydbname, index);
+                }
+            } catch (Exception e) {
+                Log.e (TAG, "exception indexing " + sqldb.mydbname, e);
+            } finally {
+                synchronized (indexes) {
+                    building.remove (sqldb.mydbname);
+                }
+                SQLiteDBs.CloseAll ();
+            }
+        }
+    }
+
+    private WaypointIndex (SQLiteDBs sqldb)
+    {
+        long started = System.currentTimeMillis ();
+        dbtagname = (DBase) sqldb.dbaux;
+        dbname = sqldb.mydbname;
+
+        // read location of every waypoint in the database
+        int n = 0;
+        types  = new byte[4096];
+        lats   = new float[4096];
+        lons   = new float[4096];
+        rowids = new int[4096];
+        for (int type = 0; type < Waypoint.wpfactories.length; type ++) {
+            Waypoint.Factory wpfactory = Waypoint.wpfactories[type];
+            String prefix = wpfactory.dbprefix;
+            Cursor result = sqldb.query (wpfactory.dbtable,
+                    new String[] { "ROWID", prefix + "lat", prefix + "lon" },
+                    null, null, null, null, null, null);
+            try {
+                if (result.moveToFirst ()) do {
+                    if (n == rowids.length) {
+                        types  = Arrays.copyOf (types,  n * 2);
+                        lats   = Arrays.copyOf (lats,   n * 2);
+                        lons   = Arrays.copyOf (lons,   n * 2);
+                        rowids = Arrays.copyOf (rowids, n * 2);
+                    }
+                    types[n]  = (byte) type;
+                    rowids[n] = result.getInt (0);
+                    lats[n]   = (float) result.getDouble (1);
+                    lons[n]   = (float) Lib.NormalLon (result.getDouble (2));
+                    n ++;
+                } while (result.moveToNext ());
+            } finally {
+                result.close ();
+            }
+        }
+
+        // sort by grid cell
+        long[] sorter = new long[n];
+        int ncells = 0;
+        for (int i = 0; i < n; i ++) {
+            sorter[i] = ((long) cellKey (lats[i], lons[i]) << 32) | i;
+        }
+        Arrays.sort (sorter);
+        byte[]  stypes  = new byte[n];
+        float[] slats   = new float[n];
+        float[] slons   = new float[n];
+        int[]   srowids = new int[n];
+        int lastkey = -1;
+        for (int j = 0; j < n; j ++) {
+            int i = (int) sorter[j];
+            stypes[j]  = types[i];
+            slats[j]   = lats[i];
+            slons[j]   = lons[i];
+            srowids[j] = rowids[i];
+            int key = (int) (sorter[j] >> 32);
+            if (lastkey != key) {
+                lastkey = key;
+                ncells ++;
+            }
+        }
+        types  = stypes;
+        lats   = slats;
+        lons   = slons;
+        rowids = srowids;
+
+        // make table of where each cell begins
+        cellkeys   = new int[ncells];
+        cellstarts = new int[ncells+1];
+        ncells  = 0;
+        lastkey = -1;
+        for (int j = 0; j < n; j ++) {
+            int key = (int) (sorter[j] >> 32);
+            if (lastkey != key) {
+                lastkey = key;
+                cellkeys[ncells]   = key;
+                cellstarts[ncells] = j;
+                ncells ++;
+            }
+        }
+        cellstarts[ncells] = n;
+
+        Log.i (TAG, "indexed " + n + " waypoints in " + ncells + " cells of " + dbname +
+                " in " + (System.currentTimeMillis () - started) + " ms");
+    }
+
+    /**
+     * Find all waypoints within the given box.
+     * @param hits = entries are appended to this
+     */
+    public void query (double sLat, double nLat, double wLon, double eLon, Hits hits)
+    {
+        wLon = Lib.NormalLon (wLon);
+        eLon = Lib.NormalLon (eLon);
+        if (wLon <= eLon) {
+            queryNoWrap (sLat, nLat, wLon, eLon, hits);
+        } else {
+            queryNoWrap (sLat, nLat, wLon, 180.0, hits);
+            queryNoWrap (sLat, nLat, -180.0, eLon, hits);
+        }
+    }
+
+    private void queryNoWrap (double sLat, double nLat, double wLon, double eLon, Hits hits)
+    {
+        int sLatCell = latCell (sLat);
+        int nLatCell = latCell (nLat);
+        int wLonCell = lonCell (wLon);
+        int eLonCell = lonCell (eLon);
+        for (int latcell = sLatCell; latcell <= nLatCell; latcell ++) {
+
+            // cells for a given latitude are contiguous in cellkeys[]
+            int begkey = latcell * NLONCELLS + wLonCell;
+            int endkey = latcell * NLONCELLS + eLonCell;
+            int c = Arrays.binarySearch (cellkeys, begkey);
+            if (c < 0) c = -1 - c;
+            for (; (c < cellkeys.length) && (cellkeys[c] <= endkey); c ++) {
+                boolean inside = (latcell > sLatCell) && (latcell < nLatCell);
+                int lonc = cellkeys[c] - latcell * NLONCELLS;
+                inside &= (lonc > wLonCell) && (lonc < eLonCell);
+                int end = cellstarts[c+1];
+                for (int i = cellstarts[c]; i < end; i ++) {
+                    if (inside || Inside (lats[i], lons[i], sLat, nLat, wLon, eLon)) {
+                        hits.add (i);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove entries from hits[start..] that are within the given box.
+     * Also removes duplicates.
+     */
+    public void exclude (Hits hits, int start, double sLat, double nLat, double wLon, double eLon)
+    {
+        Arrays.sort (hits.entries, start, hits.count);
+        int j = start;
+        for (int k = start; k < hits.count; k ++) {
+            int i = hits.entries[k];
+            if ((j > start) && (hits.entries[j-1] == i)) continue;
+            if (Inside (lats[i], lons[i], sLat, nLat, wLon, eLon)) continue;
+            hits.entries[j++] = i;
+        }
+        hits.count = j;
+    }
+
+    /**
+     * See if a waypoint is within a box the same way query() decides.
+     * Box must not wrap around the date line.
+     */
+    public static boolean Inside (Waypoint wp, double sLat, double nLat, double wLon, double eLon)
+    {
+        return Inside ((float) wp.lat, (float) Lib.NormalLon (wp.lon), sLat, nLat, wLon, eLon);
+    }
+
+    private static boolean Inside (float lat, float lon, double sLat, double nLat, double wLon, double eLon)
+    {
+        return (lat >= sLat) && (lat <= nLat) && (lon >= wLon) && (lon <= eLon);
+    }
+
+    /**
+     * Read waypoints for the given entries from the database.
+     * @param sqldb = database the index was built from
+     * @param hits = entries as returned by query()
+     * @param start = first entry in hits to read
+     * @param wps = waypoints are appended to this
+     */
+    public void readWaypoints (SQLiteDBs sqldb, Hits hits, int start, WairToNow wtn, Collection<Waypoint> wps)
+    {
+        StringBuilder sb = new StringBuilder ();
+        for (int type = 0; type < Waypoint.wpfactories.length; type ++) {
+            Waypoint.Factory wpfactory = Waypoint.wpfactories[type];
+            int inbatch = 0;
+            for (int j = start; j < hits.count; j ++) {
+                int i = hits.entries[j];
+                if (types[i] == type) {
+                    sb.append ((inbatch == 0) ? "ROWID IN (" : ",");
+                    sb.append (rowids[i]);
+                    if (++ inbatch == BATCHSIZE) {
+                        readBatch (sqldb, wpfactory, sb, wtn, wps);
+                        inbatch = 0;
+                    }
+                }
+            }
+            if (inbatch > 0) readBatch (sqldb, wpfactory, sb, wtn, wps);
+        }
+    }
+
+    private static void readBatch (SQLiteDBs sqldb, Waypoint.Factory wpfactory, StringBuilder sb,
+                                   WairToNow wtn, Collection<Waypoint> wps)
+    {
+        sb.append (')');
+        Cursor result = sqldb.query (wpfactory.dbtable, wpfactory.dbcols, sb.toString (),
+                null, null, null, null, null);
+        sb.setLength (0);
+        try {
+            if (result.moveToFirst ()) do {
+                wps.add (wpfactory.create (result, (DBase) sqldb.dbaux, wtn));
+            } while (result.moveToNext ());
+        } finally {
+            result.close ();
+        }
+    }
+
+    /**
+     * Get number of waypoints in the index.
+     */
+    public int size ()
+    {
+        return rowids.length;
+    }
+
+    private static int cellKey (double lat, double lon)
+    {
+        return latCell (lat) * NLONCELLS + lonCell (lon);
+    }
+
+    private static int latCell (double lat)
+    {
+        int c = (int) Math.floor ((lat + 90.0) / CELLDEG);
+        return Math.max (0, Math.min (NLATCELLS - 1, c));
+    }
+
+    private static int lonCell (double lon)
+    {
+        int c = (int) Math.floor ((lon + 180.0) / CELLDEG);
+        return Math.max (0, Math.min (NLONCELLS - 1, c));
+    }
+}
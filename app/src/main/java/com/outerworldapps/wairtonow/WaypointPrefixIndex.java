@@ -0,0 +1,237 @@
+//    Copyright (C) 2020, Mike Rieker, Beverly, MA USA
+//    www.outerworldapps.com
+//
+//    This program is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; version 2 of the License.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    EXPECT it to FAIL when someone's HeALTh or PROpeRTy is at RISk.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+//    http://www.gnu.org/licenses/gpl-2.0.html
+
+
+package com.outerworldapps.wairtonow;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * In-memory index of all waypoint idents and keywords in the enabled waypoint databases,
+ * used to suggest completions as the user types a search without going to the database.
+ * The strings are sorted and packed into a single char[] arena with an offset for each.
+ * Built in the background whenever the set of waypoint databases changes.
+ */
+public class WaypointPrefixIndex {
+    private final static String TAG = "WairToNow";
+
+    private static BuildThread buildThread;
+    private static WaypointPrefixIndex current;
+
+    public final String dbnames;    // names of databases the index was built from
+
+    private char[] arena;           // all strings concatenated in ascending order
+    private int[] offsets;          // where each string begins in arena, plus total at the end
+
+    /**
+     * Get index for the currently enabled waypoint databases.
+     * If not built yet (or databases changed), start building it in the background.
+     * @return index or null if not available yet
+     */
+    public static WaypointPrefixIndex get (WairToNow wtn)
+    {
+        String dbnames = GetDBNames (wtn);
+        synchronized (WaypointPrefixIndex.class) {
+            if ((current != null) && current.dbnames.equals (dbnames)) return current;
+            if (buildThread == null) {
+                buildThread = new BuildThread (wtn);
+                buildThread.start ();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Waypoint databases changed (eg, new cycle downloaded), rebuild the index in the background.
+     */
+    public static void rebuild (WairToNow wtn)
+    {
+        synchronized (WaypointPrefixIndex.class) {
+            current = null;
+            if (buildThread == null) {
+                buildThread = new BuildThread (wtn);
+                buildThread.start ();
+            } else {
+                buildThread.again = true;
+            }
+        }
+    }
+
+    /**
+     * Find strings beginning with the given prefix.
+     * @param prefix = as returned by Waypoint.NormalizeKey()
+     * @param results = where to put the matching strings, in ascending order
+     * @return number of strings put in results
+     */
+    public int query (String prefix, String[] results)
+    {
+        // binary search for first string that begins with or is greater than prefix
+        int lo = 0;
+        int hi = offsets.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare (mid, prefix) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+
+        // return strings until one doesn't begin with prefix
+        int n = 0;
+        for (int i = lo; (i < offsets.length - 1) && (n < results.length); i ++) {
+            if (compare (i, prefix) != 0) break;
+            int beg = offsets[i];
+            results[n++] = new String (arena, beg, offsets[i+1] - beg);
+        }
+        return n;
+    }
+
+    /**
+     * Get number of strings in the index.
+     */
+    public int size ()
+    {
+        return offsets.length - 1;
+    }
+
+    // compare string i with prefix
+    //  returns <0: string i is less than prefix
+    //           0: string i begins with prefix
+    //          >0: string i is greater than prefix
+    private int compare (int i, String prefix)
+    {
+        int beg  = offsets[i];
+        int len  = offsets[i+1] - beg;
+        int plen = prefix.length ();
+        for (int j = 0; (j < len) && (j < plen); j ++) {
+            int d = arena[beg+j] - prefix.charAt (j);
+            if (d != 0) return d;
+        }
+        return (len < plen) ? -1 : 0;
+    }
+
+    private static String GetDBNames (WairToNow wtn)
+    {
+        StringBuilder sb = new StringBuilder ();
+        for (SQLiteDBs sqldb : wtn.maintView.getWaypointDBs ()) {
+            sb.append (sqldb.mydbname);
+            sb.append (' ');
+        }
+        return sb.toString ();
+    }
+
+    private WaypointPrefixIndex (String dbnames, ArrayList<String> strings)
+    {
+        this.dbnames = dbnames;
+
+        Collections.sort (strings);
+
+        // pack unique strings into arena
+        int nchars = 0;
+        for (String s : strings) nchars += s.length ();
+        arena = new char[nchars];
+        int[] offs = new int[strings.size()+1];
+        int n = 0;
+        nchars = 0;
+        String last = null;
+        for (String s : strings) {
+            if (s.equals (last)) continue;
+            last = s;
+            offs[n++] = nchars;
+            s.getChars (0, s.length (), arena, nchars);
+            nchars += s.length ();
+        }
+        offs[n] = nchars;
+        offsets = new int[n+1];
+        System.arraycopy (offs, 0, offsets, 0, n + 1);
+    }
+
+    /**
+     * Reads all idents and keywords from the databases and builds the index.
+     */
+    private static class BuildThread extends Thread {
+        public boolean again;       // locked by WaypointPrefixIndex.class
+
+        private WairToNow wairToNow;
+
+        public BuildThread (WairToNow wtn)
+        {
+            wairToNow = wtn;
+            setName ("WaypointPrefixIndex");
+            setPriority (MIN_PRIORITY);
+        }
+
+        @Override
+        public void run ()
+        {
+            try {
+                while (true) {
+                    long started = System.currentTimeMillis ();
+                    String dbnames = GetDBNames (wairToNow);
+                    ArrayList<String> strings = new ArrayList<> ();
+                    for (SQLiteDBs sqldb : wairToNow.maintView.getWaypointDBs ()) {
+                        for (Waypoint.Factory wpfactory : Waypoint.wpfactories) {
+                            ReadStrings (sqldb, false, wpfactory.dbtable, wpfactory.dbkeyid, strings);
+                            if (wpfactory.dbkytbl != null) {
+                                ReadStrings (sqldb, true, wpfactory.dbkytbl, "kw_key", strings);
+                            }
+                        }
+                    }
+                    WaypointPrefixIndex index = new WaypointPrefixIndex (dbnames, strings);
+                    Log.i (TAG, "prefix indexed " + index.size () + " strings in " +
+                            (System.currentTimeMillis () - started) + " ms");
+
+                    // if databases changed while building, build it again
+                    synchronized (WaypointPrefixIndex.class) {
+                        if (! again) {
+                            current = index;
+                            break;
+                        }
+                        again = false;
+                    }
+                }
+            } catch (Exception e) {
+                Log.e (TAG, "exception building waypoint prefix index", e);
+            } finally {
+                synchronized (WaypointPrefixIndex.class) {
+                    buildThread = null;
+                }
+                SQLiteDBs.CloseAll ();
+            }
+        }
+
+        private static void ReadStrings (SQLiteDBs sqldb, boolean distinct, String table, String column,
+                                         ArrayList<String> strings)
+        {
+            Cursor result = sqldb.query (distinct, table, new String[] { column },
+                    null, null, null, null, null, null);
+            try {
+                if (result.moveToFirst ()) do {
+                    String s = result.getString (0);
+                    if ((s != null) && (s.length () > 0)) strings.add (s);
+                } while (result.moveToNext ());
+            } finally {
+                result.close ();
+            }
+        }
+    }
+}
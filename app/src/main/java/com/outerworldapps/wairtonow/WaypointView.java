@@ -35,8 +35,12 @@ import android.view.ViewParent;
 import android.view.inputmethod.EditorInfo;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
+import android.widget.AutoCompleteTextView;
+import android.widget.BaseAdapter;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.Filter;
+import android.widget.Filterable;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
@@ -60,6 +64,7 @@ import java.util.LinkedList;
 public class WaypointView extends LinearLayout
         implements WairToNow.CanBeMainView {
     public final static String TAG = "WairToNow";
+    private final static int MAXSUGGESTIONS = 20;
 
     private DestinationButton destinationButton;
     private DetentHorizontalScrollView oldSearchScroll;
@@ -72,6 +77,7 @@ public class WaypointView extends LinearLayout
     public  PlateView selectedPlateView;
     private RNavOffsetButton rnavOffsetButton;
     private SearchTextView searchTextView;
+    private volatile WaypointPrefixIndex prefixIndex;
     private String tabName;
     private TextView titleText;
     public  WairToNow wairToNow;
@@ -548,7 +554,7 @@ public class WaypointView extends LinearLayout
     /**
      * Text box used to enter the waypoint name in.
      */
-    private class SearchTextView extends EditText implements TextView.OnEditorActionListener, TextWatcher {
+    private class SearchTextView extends AutoCompleteTextView implements TextView.OnEditorActionListener, TextWatcher {
         public SearchTextView (Context ctx)
         {
             super (ctx);
@@ -557,6 +563,8 @@ public class WaypointView extends LinearLayout
             wairToNow.SetTextSize (this);
             setOnEditorActionListener (this);
             addTextChangedListener (this);
+            setThreshold (1);
+            setAdapter (new SuggestAdapter ());
         }
 
         @Override  // OnEditorActionListener
@@ -575,8 +583,95 @@ public class WaypointView extends LinearLayout
         public void afterTextChanged (Editable s)
         {
             findButton.setEnabled (s.toString ().length () > 0);
+
+            // get prefix index for suggestions (starts building it if needed)
+            prefixIndex = WaypointPrefixIndex.get (wairToNow);
+        }
+    }
+
+    /**
+     * Suggests completions for the last word typed in the search box.
+     * Uses the in-memory WaypointPrefixIndex so typing doesn't query the database.
+     */
+    private class SuggestAdapter extends BaseAdapter implements Filterable {
+        private String[] suggestions = new String[0];
+
+        @Override  // BaseAdapter
+        public int getCount ()
+        {
+            return suggestions.length;
         }
 
+        @Override  // BaseAdapter
+        public Object getItem (int position)
+        {
+            return suggestions[position];
+        }
+
+        @Override  // BaseAdapter
+        public long getItemId (int position)
+        {
+            return position;
+        }
+
+        @Override  // BaseAdapter
+        public View getView (int position, View convertView, ViewGroup parent)
+        {
+            TextView tv;
+            if (convertView instanceof TextView) {
+                tv = (TextView) convertView;
+            } else {
+                tv = new TextView (wairToNow);
+                wairToNow.SetTextSize (tv);
+            }
+            tv.setText (suggestions[position]);
+            return tv;
+        }
+
+        @Override  // Filterable
+        public Filter getFilter ()
+        {
+            return suggestFilter;
+        }
+
+        private final Filter suggestFilter = new Filter () {
+
+            // called in a worker thread
+            @Override
+            protected FilterResults performFiltering (CharSequence constraint)
+            {
+                FilterResults results = new FilterResults ();
+                WaypointPrefixIndex index = prefixIndex;
+                if ((index != null) && (constraint != null)) {
+                    String key = Waypoint.NormalizeKey (constraint.toString ());
+                    if (key.length () > 0) {
+                        int i = key.lastIndexOf (' ') + 1;
+                        String[] words = new String[MAXSUGGESTIONS];
+                        int n = index.query (key.substring (i), words);
+                        String[] found = new String[n];
+                        for (int j = 0; j < n; j ++) {
+                            found[j] = key.substring (0, i) + words[j];
+                        }
+                        results.values = found;
+                        results.count  = n;
+                    }
+                }
+                return results;
+            }
+
+            // called in UI thread
+            @Override
+            protected void publishResults (CharSequence constraint, FilterResults results)
+            {
+                suggestions = (results.values != null) ? (String[]) results.values : new String[0];
+                if (suggestions.length > 0) {
+                    notifyDataSetChanged ();
+                } else {
+                    notifyDataSetInvalidated ();
+                }
+            }
+        };
+
         @Override  // TextWatcher
         public void beforeTextChanged (CharSequence s, int start, int count, int after) { }
         @Override  // TextWatcher
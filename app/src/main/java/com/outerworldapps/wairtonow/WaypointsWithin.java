@@ -23,16 +23,22 @@ package com.outerworldapps.wairtonow;
 import android.database.Cursor;
 import android.util.Log;
 
-import java.lang.reflect.Constructor;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
 
 /**
  * Get waypoints within a lat/lon area.
+ * Uses the in-memory WaypointIndex of each database to find them,
+ * or reads the database directly if the index isn't built yet.
+ * When the area moves, only the newly uncovered strips are read
+ * and those no longer in the area are dropped.
  */
 public class WaypointsWithin {
     private double westLon, eastLon, northLat, southLat;
-    private LinkedList<Waypoint> found = new LinkedList<> ();
+    private ArrayList<Waypoint> found = new ArrayList<> ();
+    private WaypointIndex.Hits hits = new WaypointIndex.Hits ();
+    private ArrayList<SQLiteDBs> sqldbs = new ArrayList<> ();
+    private ArrayList<WaypointIndex> indexes = new ArrayList<> ();
     private WairToNow wairToNow;
 
     public WaypointsWithin (WairToNow wtn)
@@ -100,50 +106,104 @@ public class WaypointsWithin {
             wLon = Lib.NormalLon (wLon - 3.0 / 64.0);
             eLon = Lib.NormalLon (eLon + 3.0 / 64.0);
 
-            // re-scanning database, get rid of all previous points
-            found.clear ();
+            // get index for each database, null if still being built
+            boolean allindexed = true;
+            sqldbs.clear ();
+            indexes.clear ();
+            for (SQLiteDBs sqldb : wairToNow.maintView.getWaypointDBs ()) {
+                WaypointIndex index = WaypointIndex.get (sqldb);
+                if (index == null) allindexed = false;
+                sqldbs.add (sqldb);
+                indexes.add (index);
+            }
 
-            // save exact limits of what we are scanning for
-            southLat = sLat;
-            northLat = nLat;
-            westLon  = wLon;
-            eastLon  = eLon;
+            // if either box wraps around the date line (or old box is empty),
+            // or some database isn't indexed yet, just read the whole new box
+            if (!allindexed || (westLon > eastLon) || (wLon > eLon)) {
+                found.clear ();
+                for (int i = 0; i < sqldbs.size (); i ++) {
+                    SQLiteDBs sqldb = sqldbs.get (i);
+                    WaypointIndex index = indexes.get (i);
+                    try {
+                        if (index == null) {
+                            ReadBox (sqldb, sLat, nLat, wLon, eLon);
+                        } else {
+                            hits.count = 0;
+                            index.query (sLat, nLat, wLon, eLon, hits);
+                            index.readWaypoints (sqldb, hits, 0, wairToNow, found);
+                        }
+                    } catch (Exception e) {
+                        Log.e (Waypoint.TAG, "error reading " + sqldb.mydbname, e);
+                    }
+                }
+            } else {
 
-            for (SQLiteDBs sqldb : wairToNow.maintView.getWaypointDBs ()) {
-                try {
-                    for (Class<? extends Waypoint> wpclass : Waypoint.wpclasses) {
-                        String dbtable = (String) wpclass.getField ("dbtable").get (null);
-                        String keyid = (String) wpclass.getField ("dbkeyid").get (null);
-                        String[] dbcols = (String[]) wpclass.getField ("dbcols").get (null);
-                        Constructor<? extends Waypoint> ctor = wpclass.getConstructor (Cursor.class, DBase.class, WairToNow.class);
-
-                        assert keyid != null;
-                        String prefix = keyid.substring (0, 4);
-
-                        String where =
-                                prefix + "lat>=" + sLat + " AND " +
-                                prefix + "lat<=" + nLat + " AND (" +
-                                prefix + "lon>=" + wLon +
-                                ((wLon < eLon) ? " AND " : " OR ") +
-                                prefix + "lon<=" + eLon + ')';
-
-                        Cursor result = sqldb.query (
-                                dbtable, dbcols, where,
-                                null, null, null, null, null);
-                        try {
-                            if (result.moveToFirst ()) do {
-                                Waypoint wp = ctor.newInstance (result, (DBase) sqldb.dbaux, wairToNow);
-                                found.addLast (wp);
-                            } while (result.moveToNext ());
-                        } finally {
-                            result.close ();
+                // forget points that are outside the new box
+                int j = 0;
+                int n = found.size ();
+                for (int i = 0; i < n; i ++) {
+                    Waypoint wp = found.get (i);
+                    if (WaypointIndex.Inside (wp, sLat, nLat, wLon, eLon)) found.set (j ++, wp);
+                }
+                found.subList (j, n).clear ();
+
+                // read points for the strips of the new box not in the old box
+                double bandsLat = Math.max (sLat, southLat);
+                double bandnLat = Math.min (nLat, northLat);
+                for (int i = 0; i < sqldbs.size (); i ++) {
+                    SQLiteDBs sqldb = sqldbs.get (i);
+                    WaypointIndex index = indexes.get (i);
+                    try {
+                        hits.count = 0;
+                        if (sLat < southLat) index.query (sLat, Math.min (nLat, southLat), wLon, eLon, hits);
+                        if (nLat > northLat) index.query (Math.max (sLat, northLat), nLat, wLon, eLon, hits);
+                        if (bandsLat <= bandnLat) {
+                            if (wLon < westLon) index.query (bandsLat, bandnLat, wLon, Math.min (eLon, westLon), hits);
+                            if (eLon > eastLon) index.query (bandsLat, bandnLat, Math.max (wLon, eastLon), eLon, hits);
                         }
+                        index.exclude (hits, 0, southLat, northLat, westLon, eastLon);
+                        index.readWaypoints (sqldb, hits, 0, wairToNow, found);
+                    } catch (Exception e) {
+                        Log.e (Waypoint.TAG, "error reading " + sqldb.mydbname, e);
                     }
-                } catch (Exception e) {
-                    Log.e (Waypoint.TAG, "error reading " + sqldb.mydbname, e);
                 }
             }
+
+            // save exact limits of what we have
+            southLat = sLat;
+            northLat = nLat;
+            westLon  = wLon;
+            eastLon  = eLon;
         }
         return found;
     }
+
+    /**
+     * Read all waypoints within the given box directly from the database.
+     * Used until the database's index is built.
+     */
+    private void ReadBox (SQLiteDBs sqldb, double sLat, double nLat, double wLon, double eLon)
+    {
+        for (Waypoint.Factory wpfactory : Waypoint.wpfactories) {
+            String prefix = wpfactory.dbprefix;
+
+            String where =
+                    prefix + "lat>=" + sLat + " AND " +
+                    prefix + "lat<=" + nLat + " AND (" +
+                    prefix + "lon>=" + wLon +
+                    ((wLon < eLon) ? " AND " : " OR ") +
+                    prefix + "lon<=" + eLon + ')';
+
+            Cursor result = sqldb.query (
+                    wpfactory.dbtable, wpfactory.dbcols, where,
+                    null, null, null, null, null);
+            try {
+                if (result.moveToFirst ()) do {
+                    found.add (wpfactory.create (result, (DBase) sqldb.dbaux, wairToNow));
+                } while (result.moveToNext ());
+            } finally {
+                result.close ();
+            }
+        }
+    }
 }